@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Checks the input signatures of a whole epoch of transactions up front, spread over the common
+ * fork-join pool, so that the order-dependent UTXO bookkeeping in {@link TxHandler#handleTxs} can
+ * run in one cheap sequential pass afterwards.
+ */
+public class BatchVerifier {
+
+    /** batches with fewer inputs than this are checked on the calling thread */
+    static final int PARALLEL_THRESHOLD = 16;
+
+    /**
+     * Verifies the signature of every input of {@code txs} against the output it claims. The
+     * claimed output is looked up in {@code pool} and, failing that, among the outputs of
+     * {@code txs} themselves, so that transactions spending outputs created in the same epoch are
+     * checked too. Inputs whose output cannot be found are left to the UTXO checks.
+     *
+     * @return for each transaction, false if the signature of one of its inputs is invalid
+     */
+    public static boolean[] verify(UTXOPool pool, Transaction[] txs) {
+        HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+        int numInputs = 0;
+        for (Transaction tx : txs) {
+            numInputs += tx.numInputs();
+            if (tx.getHash() == null)
+                continue;
+            for (int i = 0; i < tx.numOutputs(); i++)
+                created.putIfAbsent(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+
+        int[] txIndex = new int[numInputs];
+        int[] inputIndex = new int[numInputs];
+        int k = 0;
+        for (int t = 0; t < txs.length; t++) {
+            for (int i = 0; i < txs[t].numInputs(); i++) {
+                txIndex[k] = t;
+                inputIndex[k] = i;
+                ++k;
+            }
+        }
+
+        boolean[] inputValid = new boolean[numInputs];
+        IntStream range = IntStream.range(0, numInputs);
+        if (numInputs >= PARALLEL_THRESHOLD)
+            range = range.parallel();
+        range.forEach(j -> inputValid[j] = verifyInput(pool, created, txs[txIndex[j]], inputIndex[j]));
+
+        boolean[] valid = new boolean[txs.length];
+        Arrays.fill(valid, true);
+        for (int j = 0; j < numInputs; j++) {
+            if (!inputValid[j])
+                valid[txIndex[j]] = false;
+        }
+        return valid;
+    }
+
+    private static boolean verifyInput(UTXOPool pool, HashMap<UTXO, Transaction.Output> created,
+            Transaction tx, int index) {
+        Transaction.Input ip = tx.getInput(index);
+        if (ip.prevTxHash == null)
+            return true;
+        UTXO claimed = new UTXO(ip.prevTxHash, ip.outputIndex);
+        Transaction.Output txOp = pool.getTxOutput(claimed);
+        if (txOp == null)
+            txOp = created.get(claimed);
+        if (txOp == null)
+            return true;
+        return Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature);
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** A {@link UTXOStore} kept in a {@code HashMap} of {@link UTXO} objects */
+public class HashUTXOStore implements UTXOStore {
+
+    private HashMap<UTXO, Transaction.Output> H;
+
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    public UTXOStore copy() {
+        return new HashUTXOStore(this);
+    }
+}
@@ -1,11 +1,11 @@
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 
 public class MaxFeeTxHandler {
 
     private UTXOPool pool;
+    private final int maxBlockSize;
 
 	/**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,7 +13,16 @@ public class MaxFeeTxHandler {
      * constructor.
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a ledger as {@link #MaxFeeTxHandler(UTXOPool)} does, whose epochs accept at most
+     * {@code maxBlockSize} bytes of serialized transactions.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, int maxBlockSize) {
         pool = new UTXOPool(utxoPool);
+        this.maxBlockSize = maxBlockSize;
     }
 
     /**
@@ -26,6 +35,14 @@ public class MaxFeeTxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+    	return isValidTx(tx, false);
+    }
+
+    /**
+     * Checks {@code tx} as {@link #isValidTx(Transaction)} does, skipping condition (2) when
+     * {@code signaturesVerified} is true because the signatures have already been checked.
+     */
+    private boolean isValidTx(Transaction tx, boolean signaturesVerified) {
     	double inputSum = 0;
     	double outputSum = 0;
         ArrayList<Transaction.Output> outputs = tx.getOutputs();
@@ -38,7 +55,8 @@ public class MaxFeeTxHandler {
 			if (Objects.isNull(txOp)) { // condition 1
 				return false;
 			}
-			if (!Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature)) {
+			if (!signaturesVerified
+					&& !Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature)) {
 				return false; // condition 2
 			}
 			if (!usedOutputs.add(searchKey)) {
@@ -62,13 +80,16 @@ public class MaxFeeTxHandler {
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. Among conflicting transactions, the ones kept
+     * are chosen by {@link PackageSelector} to maximize the total fee: packages of a transaction
+     * and its in-epoch ancestors are taken by decreasing fee, or by decreasing fee per byte when
+     * the epoch has a size limit. The accepted transactions are returned parents first.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
     	ArrayList<Transaction> newTransactions = new ArrayList<>();
-    	ArrayList<Transaction> rejectedTransactions = new ArrayList<>();
-        for (Transaction tx: possibleTxs) {
-        	if (isValidTx(tx)) {
+    	Transaction[] selected = new PackageSelector(pool, possibleTxs, maxBlockSize).select();
+        for (Transaction tx: selected) {
+        	if (isValidTx(tx, true)) {
         		newTransactions.add(tx);
             	for (Transaction.Input ip: tx.getInputs()) {
             		UTXO searchKey = new UTXO(ip.prevTxHash, ip.outputIndex);
@@ -80,14 +101,8 @@ public class MaxFeeTxHandler {
             		pool.addUTXO(newOp, op);
             		++index;
             	}
-        	} else {
-        		rejectedTransactions.add(tx);
         	}
         }
-        if (rejectedTransactions.size() < possibleTxs.length) {
-        	Transaction[] additonalTransactions = handleTxs(rejectedTransactions.toArray(new Transaction[rejectedTransactions.size()]));
-        	newTransactions.addAll(Arrays.asList(additonalTransactions));
-        }
         return newTransactions.toArray(new Transaction[newTransactions.size()]);
     }
 }
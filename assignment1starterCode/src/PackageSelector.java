@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+ * Chooses the transactions of an epoch that maximize total fees. Every transaction is scored
+ * together with its in-epoch ancestors (its package) by package fee per serialized byte, so a child
+ * paying a high fee pulls in its low-fee parents. When the epoch has no size limit, space is not
+ * worth saving and packages are scored by their fee alone, so that of two conflicting transactions
+ * the one paying more is kept however large it is. Packages are taken best score first; taking one
+ * discards every transaction conflicting with it, along with their descendants, and lowers the
+ * package of each remaining descendant by the transactions just taken.
+ */
+public class PackageSelector {
+
+    /** most in-epoch ancestors a transaction may have and still be selected */
+    public static final int MAX_ANCESTORS = 25;
+
+    private final UTXOPool pool;
+    private final Transaction[] txs;
+    private final int maxSize;
+
+    /** the transactions in {@link SpendGraph} order, and the position of each in it */
+    private int[] order;
+    private final int[] position;
+    private final boolean[] candidate;
+    private final double[] fee;
+    private final int[] size;
+    /** in-epoch ancestors of each candidate, in {@link SpendGraph} order */
+    private final int[][] ancestors;
+    private final ArrayList<ArrayList<Integer>> children;
+    /** candidates spending each outpoint */
+    private final HashMap<UTXO, ArrayList<Integer>> spenders;
+
+    private final double[] packageFee;
+    private final long[] packageSize;
+    /** bumped whenever a package changes, so that older queue entries can be skipped */
+    private final int[] version;
+    private final int[] visited;
+    private int visit;
+
+    /**
+     * @param pool the unspent outputs before the epoch
+     * @param txs the proposed transactions
+     * @param maxSize the most serialized bytes the selected transactions may add up to, or
+     *        {@link Integer#MAX_VALUE} for no limit
+     */
+    public PackageSelector(UTXOPool pool, Transaction[] txs, int maxSize) {
+        this.pool = pool;
+        this.txs = txs;
+        this.maxSize = maxSize;
+        int n = txs.length;
+        position = new int[n];
+        Arrays.fill(position, -1);
+        candidate = new boolean[n];
+        fee = new double[n];
+        size = new int[n];
+        ancestors = new int[n][];
+        children = new ArrayList<>(n);
+        for (int t = 0; t < n; t++)
+            children.add(null);
+        spenders = new HashMap<>();
+        packageFee = new double[n];
+        packageSize = new long[n];
+        version = new int[n];
+        visited = new int[n];
+    }
+
+    /**
+     * @return the selected transactions, parents before children, such that applying them in
+     *         order to the pool keeps every one of them valid
+     */
+    public Transaction[] select() {
+        findCandidates();
+        PriorityQueue<Entry> queue = new PriorityQueue<>();
+        for (int t = 0; t < txs.length; t++) {
+            if (candidate[t])
+                queue.add(new Entry(t));
+        }
+
+        ArrayList<Transaction> selected = new ArrayList<>();
+        long selectedSize = 0;
+        while (!queue.isEmpty()) {
+            Entry e = queue.poll();
+            int t = e.tx;
+            if (!candidate[t] || e.version != version[t])
+                continue;
+            if (selectedSize + packageSize[t] > maxSize)
+                continue;
+            for (int a : ancestors[t]) {
+                if (candidate[a]) {
+                    selectedSize += take(a, queue);
+                    selected.add(txs[a]);
+                }
+            }
+            selectedSize += take(t, queue);
+            selected.add(txs[t]);
+        }
+        return selected.toArray(new Transaction[selected.size()]);
+    }
+
+    /**
+     * Works out which transactions could be valid, their fees, sizes and ancestors, visiting them
+     * in {@link SpendGraph} order so that parents are settled before their children.
+     */
+    private void findCandidates() {
+        boolean[] signaturesValid = BatchVerifier.verify(pool, txs);
+        HashMap<UTXO, Integer> creator = new HashMap<>();
+        for (int t = 0; t < txs.length; t++) {
+            byte[] hash = txs[t].getHash();
+            if (hash == null)
+                continue;
+            for (int i = 0; i < txs[t].numOutputs(); i++)
+                creator.putIfAbsent(new UTXO(hash, i), t);
+        }
+
+        order = SpendGraph.order(txs);
+        for (int i = 0; i < order.length; i++)
+            position[order[i]] = i;
+        for (int t : order) {
+            if (!signaturesValid[t])
+                continue;
+            HashSet<Integer> parents = new HashSet<>();
+            double inputSum = resolveInputs(t, creator, parents);
+            if (inputSum < 0)
+                continue;
+            double outputSum = 0;
+            boolean valid = true;
+            for (Transaction.Output op : txs[t].getOutputs()) {
+                if (op.value < 0)
+                    valid = false;
+                outputSum += op.value;
+            }
+            if (!valid || outputSum > inputSum)
+                continue;
+            int[] anc = collectAncestors(parents);
+            if (anc == null || conflictsWithin(t, anc))
+                continue;
+
+            candidate[t] = true;
+            ancestors[t] = anc;
+            fee[t] = inputSum - outputSum;
+            size[t] = Math.max(1, txs[t].getRawTx().length);
+            packageFee[t] = fee[t];
+            packageSize[t] = size[t];
+            for (int a : anc) {
+                packageFee[t] += fee[a];
+                packageSize[t] += size[a];
+            }
+            for (int p : parents) {
+                if (children.get(p) == null)
+                    children.set(p, new ArrayList<Integer>());
+                children.get(p).add(t);
+            }
+            for (Transaction.Input ip : txs[t].getInputs())
+                spenders.computeIfAbsent(new UTXO(ip.prevTxHash, ip.outputIndex), u -> new ArrayList<>()).add(t);
+        }
+    }
+
+    /**
+     * @return the sum of the values spent by {@code t}, adding to {@code parents} the candidates
+     *         creating them, or -1 if an input is missing or claimed twice
+     */
+    private double resolveInputs(int t, HashMap<UTXO, Integer> creator, HashSet<Integer> parents) {
+        double inputSum = 0;
+        HashSet<UTXO> used = new HashSet<>();
+        for (Transaction.Input ip : txs[t].getInputs()) {
+            if (ip.prevTxHash == null)
+                return -1;
+            UTXO claimed = new UTXO(ip.prevTxHash, ip.outputIndex);
+            if (!used.add(claimed))
+                return -1;
+            Transaction.Output txOp = pool.getTxOutput(claimed);
+            if (txOp == null) {
+                Integer p = creator.get(claimed);
+                if (p == null || p.intValue() == t || !candidate[p])
+                    return -1;
+                parents.add(p);
+                txOp = txs[p].getOutput(ip.outputIndex);
+            }
+            inputSum += txOp.value;
+        }
+        return inputSum;
+    }
+
+    /** @return the ancestors of a transaction with {@code parents}, or null if there are too many */
+    private int[] collectAncestors(HashSet<Integer> parents) {
+        HashSet<Integer> all = new HashSet<>(parents);
+        for (int p : parents) {
+            for (int a : ancestors[p])
+                all.add(a);
+        }
+        if (all.size() > MAX_ANCESTORS)
+            return null;
+        int[] anc = new int[all.size()];
+        int i = 0;
+        for (int a : all)
+            anc[i++] = a;
+        sortByPosition(anc);
+        return anc;
+    }
+
+    /** @return true if {@code t} and its ancestors {@code anc} spend some outpoint twice */
+    private boolean conflictsWithin(int t, int[] anc) {
+        if (anc.length == 0)
+            return false;
+        HashSet<UTXO> spent = new HashSet<>();
+        for (Transaction.Input ip : txs[t].getInputs())
+            spent.add(new UTXO(ip.prevTxHash, ip.outputIndex));
+        for (int a : anc) {
+            for (Transaction.Input ip : txs[a].getInputs()) {
+                if (!spent.add(new UTXO(ip.prevTxHash, ip.outputIndex)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void sortByPosition(int[] txIndexes) {
+        for (int i = 0; i < txIndexes.length; i++)
+            txIndexes[i] = position[txIndexes[i]];
+        Arrays.sort(txIndexes);
+        for (int i = 0; i < txIndexes.length; i++)
+            txIndexes[i] = order[txIndexes[i]];
+    }
+
+    /**
+     * Selects {@code t}: discards the transactions spending the same outpoints, and removes
+     * {@code t} from the packages of its remaining descendants.
+     *
+     * @return the size of {@code t}
+     */
+    private int take(int t, PriorityQueue<Entry> queue) {
+        candidate[t] = false;
+        for (Transaction.Input ip : txs[t].getInputs()) {
+            for (int other : spenders.get(new UTXO(ip.prevTxHash, ip.outputIndex))) {
+                if (other != t)
+                    discard(other);
+            }
+        }
+
+        ++visit;
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(t);
+        while (!stack.isEmpty()) {
+            int p = stack.remove(stack.size() - 1);
+            if (children.get(p) == null)
+                continue;
+            for (int d : children.get(p)) {
+                if (!candidate[d] || visited[d] == visit)
+                    continue;
+                visited[d] = visit;
+                packageFee[d] -= fee[t];
+                packageSize[d] -= size[t];
+                ++version[d];
+                queue.add(new Entry(d));
+                stack.add(d);
+            }
+        }
+        return size[t];
+    }
+
+    /** Drops {@code t} and all its descendants from consideration */
+    private void discard(int t) {
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(t);
+        while (!stack.isEmpty()) {
+            int d = stack.remove(stack.size() - 1);
+            if (!candidate[d])
+                continue;
+            candidate[d] = false;
+            if (children.get(d) != null)
+                stack.addAll(children.get(d));
+        }
+    }
+
+    /** A package score as it was when queued; best score first, then earliest in epoch order */
+    private class Entry implements Comparable<Entry> {
+        final int tx;
+        final int version;
+        final double score;
+
+        Entry(int tx) {
+            this.tx = tx;
+            this.version = PackageSelector.this.version[tx];
+            this.score = maxSize == Integer.MAX_VALUE ? packageFee[tx] : packageFee[tx] / packageSize[tx];
+        }
+
+        public int compareTo(Entry other) {
+            int c = Double.compare(other.score, score);
+            if (c != 0)
+                return c;
+            return Integer.compare(position[tx], position[other.tx]);
+        }
+    }
+}
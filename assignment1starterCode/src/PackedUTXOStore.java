@@ -0,0 +1,293 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A compact {@link UTXOStore} for very large UTXO sets. Each outpoint is packed into primitive
+ * arrays of an open-addressing table: the 32-byte transaction hash as four {@code long}s, the
+ * output index and value, and a reference into a table of distinct addresses, so an entry costs
+ * about 50 bytes instead of a {@code HashMap} node, a {@link UTXO}, its hash array and an
+ * {@code Output}. Collisions are resolved by linear probing and removals shift the following
+ * entries back, so the table never fills up with tombstones.
+ *
+ * <p>
+ * Outputs are rebuilt on every lookup, so callers should not rely on their identity.
+ * Transactions whose hash is not 32 bytes long are kept in a plain map on the side.
+ */
+public class PackedUTXOStore implements UTXOStore {
+
+    private static final int HASH_LONGS = 4;
+    private static final int HASH_BYTES = HASH_LONGS * Long.BYTES;
+    private static final int MIN_CAPACITY = 16;
+    /** the table doubles once it is more than this full */
+    private static final double MAX_LOAD = 0.7;
+
+    /** enclosing instance for the outputs handed out by {@link #getTxOutput} */
+    private static final Transaction OUTPUT_FACTORY = new Transaction();
+
+    private long[] hashes;
+    private int[] indexes;
+    private double[] values;
+    /** address id + 1 of each slot, or 0 if the slot is empty */
+    private int[] addresses;
+    private int mask;
+    private int size;
+    private final Addresses addressTable;
+    private final HashMap<UTXO, Transaction.Output> others;
+
+    public PackedUTXOStore() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates a store sized for {@code expectedSize} UTXOs */
+    public PackedUTXOStore(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+        addressTable = new Addresses();
+        others = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private PackedUTXOStore(PackedUTXOStore store) {
+        hashes = store.hashes.clone();
+        indexes = store.indexes.clone();
+        values = store.values.clone();
+        addresses = store.addresses.clone();
+        mask = store.mask;
+        size = store.size;
+        addressTable = new Addresses(store.addressTable);
+        others = new HashMap<UTXO, Transaction.Output>(store.others);
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES) {
+            others.put(utxo, txOut);
+            return;
+        }
+        int slot = find(txHash, utxo.getIndex());
+        if (slot >= 0) {
+            int old = addresses[slot] - 1;
+            addresses[slot] = addressTable.acquire(txOut.address) + 1;
+            addressTable.release(old);
+            values[slot] = txOut.value;
+            return;
+        }
+        if (size + 1 > (mask + 1) * MAX_LOAD) {
+            rehash((mask + 1) * 2);
+            slot = find(txHash, utxo.getIndex());
+        }
+        slot = -slot - 1;
+        for (int i = 0; i < HASH_LONGS; i++)
+            hashes[slot * HASH_LONGS + i] = readLong(txHash, i * Long.BYTES);
+        indexes[slot] = utxo.getIndex();
+        values[slot] = txOut.value;
+        addresses[slot] = addressTable.acquire(txOut.address) + 1;
+        ++size;
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES) {
+            others.remove(utxo);
+            return;
+        }
+        int slot = find(txHash, utxo.getIndex());
+        if (slot < 0)
+            return;
+        addressTable.release(addresses[slot] - 1);
+        --size;
+        // shift back the entries that probed past the freed slot
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (addresses[next] != 0) {
+            int home = home(hashes[next * HASH_LONGS], indexes[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[hole] = 0;
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES)
+            return others.get(utxo);
+        int slot = find(txHash, utxo.getIndex());
+        if (slot < 0)
+            return null;
+        return OUTPUT_FACTORY.new Output(values[slot], addressTable.get(addresses[slot] - 1));
+    }
+
+    public boolean contains(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES)
+            return others.containsKey(utxo);
+        return find(txHash, utxo.getIndex()) >= 0;
+    }
+
+    public int size() {
+        return size + others.size();
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+        byte[] txHash = new byte[HASH_BYTES];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (addresses[slot] == 0)
+                continue;
+            for (int i = 0; i < HASH_LONGS; i++)
+                writeLong(txHash, i * Long.BYTES, hashes[slot * HASH_LONGS + i]);
+            allUTXO.add(new UTXO(txHash, indexes[slot]));
+        }
+        allUTXO.addAll(others.keySet());
+        return allUTXO;
+    }
+
+    public UTXOStore copy() {
+        return new PackedUTXOStore(this);
+    }
+
+    /** @return the slot holding the outpoint, or {@code -slot - 1} for the free slot it would take */
+    private int find(byte[] txHash, int index) {
+        long h0 = readLong(txHash, 0);
+        long h1 = readLong(txHash, Long.BYTES);
+        long h2 = readLong(txHash, 2 * Long.BYTES);
+        long h3 = readLong(txHash, 3 * Long.BYTES);
+        int slot = home(h0, index);
+        while (addresses[slot] != 0) {
+            int base = slot * HASH_LONGS;
+            if (indexes[slot] == index && hashes[base] == h0 && hashes[base + 1] == h1
+                    && hashes[base + 2] == h2 && hashes[base + 3] == h3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /** @return the slot an outpoint starts probing from */
+    private int home(long h0, int index) {
+        long h = h0 ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(hashes, from * HASH_LONGS, hashes, to * HASH_LONGS, HASH_LONGS);
+        indexes[to] = indexes[from];
+        values[to] = values[from];
+        addresses[to] = addresses[from];
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHashes = hashes;
+        int[] oldIndexes = indexes;
+        double[] oldValues = values;
+        int[] oldAddresses = addresses;
+        allocate(capacity);
+        for (int from = 0; from < oldAddresses.length; from++) {
+            if (oldAddresses[from] == 0)
+                continue;
+            int base = from * HASH_LONGS;
+            int to = home(oldHashes[base], oldIndexes[from]);
+            while (addresses[to] != 0)
+                to = (to + 1) & mask;
+            System.arraycopy(oldHashes, base, hashes, to * HASH_LONGS, HASH_LONGS);
+            indexes[to] = oldIndexes[from];
+            values[to] = oldValues[from];
+            addresses[to] = oldAddresses[from];
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity * HASH_LONGS];
+        indexes = new int[capacity];
+        values = new double[capacity];
+        addresses = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedSize)
+            capacity *= 2;
+        return capacity;
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        long v = 0;
+        for (int i = 0; i < Long.BYTES; i++)
+            v = (v << 8) | (b[offset + i] & 0xff);
+        return v;
+    }
+
+    private static void writeLong(byte[] b, int offset, long v) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            b[offset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /** Distinct addresses referenced by the table, each with a count of the slots using it */
+    private static final class Addresses {
+        private final ArrayList<PublicKey> keys;
+        private final HashMap<PublicKey, Integer> ids;
+        private int[] refs;
+        private int[] free;
+        private int freeCount;
+
+        Addresses() {
+            keys = new ArrayList<PublicKey>();
+            ids = new HashMap<PublicKey, Integer>();
+            refs = new int[MIN_CAPACITY];
+            free = new int[MIN_CAPACITY];
+        }
+
+        Addresses(Addresses other) {
+            keys = new ArrayList<PublicKey>(other.keys);
+            ids = new HashMap<PublicKey, Integer>(other.ids);
+            refs = other.refs.clone();
+            free = other.free.clone();
+            freeCount = other.freeCount;
+        }
+
+        /** @return the id of {@code key}, counting one more slot using it */
+        int acquire(PublicKey key) {
+            Integer id = ids.get(key);
+            int i;
+            if (id != null) {
+                i = id.intValue();
+            } else if (freeCount > 0) {
+                i = free[--freeCount];
+                keys.set(i, key);
+                ids.put(key, i);
+            } else {
+                i = keys.size();
+                keys.add(key);
+                ids.put(key, i);
+                if (i == refs.length)
+                    refs = Arrays.copyOf(refs, i * 2);
+            }
+            ++refs[i];
+            return i;
+        }
+
+        /** Counts one slot fewer using address {@code id}, forgetting it once unused */
+        void release(int id) {
+            if (--refs[id] > 0)
+                return;
+            ids.remove(keys.get(id));
+            keys.set(id, null);
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = id;
+        }
+
+        PublicKey get(int id) {
+            return keys.get(id);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestBatchVerifier extends TestCase {
+
+	private static final int TXS = 8;
+	private static final int INPUTS = 8;
+	private Wallet wallet;
+	/** a transaction paying {@code TXS * INPUTS} outputs to the wallet, all unspent */
+	private Transaction funding;
+	private UTXOPool pool;
+
+	public void testParallelAgreesWithSerial() {
+		assertTrue(TXS * INPUTS >= BatchVerifier.PARALLEL_THRESHOLD);
+		Random random = new Random(1);
+		for (int round = 0; round < 20; ++round) {
+			Transaction txs[] = new Transaction[TXS];
+			for (int t = 0; t < TXS; ++t) {
+				Transaction signed = new Transaction();
+				for (int i = 0; i < INPUTS; ++i) {
+					signed.addInput(funding.getHash(), t * INPUTS + i);
+				}
+				for (int i = 0; i < 3; ++i) {
+					signed.addOutput(1, wallet.getPublicKey());
+				}
+				txs[t] = unfrozenCopy(wallet.sign(signed));
+				if (random.nextInt(3) == 0) {
+					int index = random.nextInt(INPUTS);
+					byte[] sig = txs[t].getInput(index).signature.clone();
+					sig[0] ^= 1;
+					txs[t].addSignature(sig, index);
+				}
+			}
+			// every input of a transaction needs its serialized outputs at the same time
+			boolean valid[] = BatchVerifier.verify(pool, txs);
+			for (int t = 0; t < TXS; ++t) {
+				assertEquals("round " + round + " tx " + t, serialVerify(txs[t]), valid[t]);
+			}
+		}
+	}
+
+	/** @return a copy of {@code tx} with new outputs, so that nothing serialized is carried over */
+	private static Transaction unfrozenCopy(Transaction tx) {
+		Transaction copy = new Transaction();
+		for (Transaction.Input ip : tx.getInputs()) {
+			copy.addInput(ip.prevTxHash, ip.outputIndex);
+		}
+		for (Transaction.Output op : tx.getOutputs()) {
+			copy.addOutput(op.value, op.address);
+		}
+		for (int i = 0; i < tx.numInputs(); ++i) {
+			copy.addSignature(tx.getInput(i).signature, i);
+		}
+		return copy;
+	}
+
+	private boolean serialVerify(Transaction tx) {
+		for (int i = 0; i < tx.numInputs(); ++i) {
+			Transaction.Input ip = tx.getInput(i);
+			Transaction.Output claimed = pool.getTxOutput(new UTXO(ip.prevTxHash, ip.outputIndex));
+			if (!Crypto.verifySignature(claimed.address, tx.getRawDataToSign(i), ip.signature)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void setUp() {
+		wallet = new Wallet();
+		funding = new Transaction();
+		for (int i = 0; i < TXS * INPUTS; ++i) {
+			funding.addOutput(10, wallet.getPublicKey());
+		}
+		funding.finalize();
+		pool = new UTXOPool();
+		for (int i = 0; i < funding.numOutputs(); ++i) {
+			pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TestMaxFeeTxHandler extends TestCase {
+
+	private Wallet wallet;
+	private Transaction coin;
+	private UTXOPool pool;
+
+	public void testUnboundedKeepsHigherFee() {
+		// A pays more in all but less per byte than B, and both spend the same coin
+		Transaction a = split(coin, 0, 1.0, 5);
+		Transaction b = split(coin, 0, 0.5, 1);
+		assertTrue(1.0 / a.getRawTx().length < 0.5 / b.getRawTx().length);
+
+		checkSelected(new MaxFeeTxHandler(pool).handleTxs(new Transaction[] { b, a }), a);
+	}
+
+	public void testBoundedKeepsHigherFeeRate() {
+		// a size limit makes space worth saving, so the higher fee rate wins
+		Transaction a = split(coin, 0, 1.0, 5);
+		Transaction b = split(coin, 0, 0.5, 1);
+
+		checkSelected(new MaxFeeTxHandler(pool, 1 << 20).handleTxs(new Transaction[] { a, b }), b);
+	}
+
+	public void testChildPaysForParent() {
+		// P pays almost nothing, Q more than P, and P's child enough to lift the pair above Q
+		Transaction p = wallet.spend(coin, 0, 9.9);
+		Transaction k = wallet.spend(p, 0, 7.9);
+		Transaction q = wallet.spend(coin, 0, 9);
+		assertEquals(p.getRawTx().length, q.getRawTx().length);
+
+		Transaction[] proposed = { q, p, k };
+		checkSelected(new MaxFeeTxHandler(pool).handleTxs(proposed), p, k);
+		checkSelected(new MaxFeeTxHandler(pool, 1 << 20).handleTxs(proposed), p, k);
+	}
+
+	public void testPackageRateUnderSizeLimit() {
+		// room for two transactions: K's fee is the highest, but not once shared with its parent P
+		Transaction funding = new Transaction();
+		funding.addInput(coin.getHash(), 0);
+		for (int i = 0; i < 3; ++i) {
+			funding.addOutput(3, wallet.getPublicKey());
+		}
+		wallet.sign(funding);
+		pool.removeUTXO(new UTXO(coin.getHash(), 0));
+		for (int i = 0; i < funding.numOutputs(); ++i) {
+			pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+		Transaction p = wallet.spend(funding, 0, 3);
+		Transaction k = wallet.spend(p, 0, 1.8);
+		Transaction q1 = wallet.spend(funding, 1, 2);
+		Transaction q2 = wallet.spend(funding, 2, 2);
+		int size = p.getRawTx().length;
+
+		MaxFeeTxHandler handler = new MaxFeeTxHandler(pool, 2 * size + size / 2);
+		checkSelected(handler.handleTxs(new Transaction[] { p, k, q1, q2 }), q1, q2);
+	}
+
+	public void testAncestorLimit() {
+		// a chain of transactions each spending the previous one, all in the same epoch
+		Transaction chain[] = new Transaction[PackageSelector.MAX_ANCESTORS + 3];
+		Transaction prev = coin;
+		for (int i = 0; i < chain.length; ++i) {
+			chain[i] = wallet.spend(prev, 0, 10 - 0.1 * (i + 1));
+			prev = chain[i];
+		}
+		// a transaction with more ancestors than the limit is left out, and its descendants with it
+		checkSelected(new MaxFeeTxHandler(pool).handleTxs(chain),
+				Arrays.copyOf(chain, PackageSelector.MAX_ANCESTORS + 1));
+	}
+
+	/**
+	 * @return a transaction spending output {@code index} of {@code prevTx} and paying {@code fee},
+	 *         the rest split into {@code outputs} equal outputs
+	 */
+	private Transaction split(Transaction prevTx, int index, double fee, int outputs) {
+		double values[] = new double[outputs];
+		Arrays.fill(values, (prevTx.getOutput(index).value - fee) / outputs);
+		return wallet.spend(prevTx, index, values);
+	}
+
+	private static void checkSelected(Transaction[] accepted, Transaction... expected) {
+		assertEquals(expected.length, accepted.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertSame(expected[i], accepted[i]);
+		}
+	}
+
+	@Override
+	public void setUp() {
+		wallet = new Wallet();
+		coin = new Transaction();
+		coin.addOutput(10, wallet.getPublicKey());
+		coin.finalize();
+		pool = new UTXOPool();
+		pool.addUTXO(new UTXO(coin.getHash(), 0), coin.getOutput(0));
+	}
+}
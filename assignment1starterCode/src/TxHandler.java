@@ -25,6 +25,14 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+    	return isValidTx(tx, false);
+    }
+
+    /**
+     * Checks {@code tx} as {@link #isValidTx(Transaction)} does, skipping condition (2) when
+     * {@code signaturesVerified} is true because the signatures have already been checked.
+     */
+    private boolean isValidTx(Transaction tx, boolean signaturesVerified) {
     	double inputSum = 0;
     	double outputSum = 0;
         ArrayList<Transaction.Output> outputs = tx.getOutputs();
@@ -37,7 +45,8 @@ public class TxHandler {
 			if (Objects.isNull(txOp)) { // condition 1
 				return false;
 			}
-			if (!Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature)) {
+			if (!signaturesVerified
+					&& !Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature)) {
 				return false; // condition 2
 			}
 			if (!usedOutputs.add(searchKey)) {
@@ -61,12 +70,17 @@ public class TxHandler {
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. All input signatures are checked in parallel
+     * by {@link BatchVerifier} before a single sequential pass over the pool, which takes the
+     * transactions in {@link SpendGraph} order so that a child proposed before its parent is still
+     * accepted. The accepted transactions are returned in that order.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
     	ArrayList<Transaction> newTransactions = new ArrayList<>();
-        for (Transaction tx: possibleTxs) {
-        	if (isValidTx(tx)) {
+    	boolean[] signaturesValid = BatchVerifier.verify(pool, possibleTxs);
+        for (int i: SpendGraph.order(possibleTxs)) {
+        	Transaction tx = possibleTxs[i];
+        	if (signaturesValid[i] && isValidTx(tx, true)) {
         		newTransactions.add(tx);
             	for (Transaction.Input ip: tx.getInputs()) {
             		UTXO searchKey = new UTXO(ip.prevTxHash, ip.outputIndex);
@@ -1,32 +1,55 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output;
+     * volatile since copying the pool replaces it, and lookups may run meanwhile
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private volatile UTXOStore store;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        store = new HashUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new empty UTXOPool kept in {@code store}, such as a {@link PackedUTXOStore} */
+    public UTXOPool(UTXOStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, in constant time: the current
+     * contents of {@code uPool} are frozen and shared, and each pool records its own changes in an
+     * {@link OverlayUTXOStore} on top of them.
+     *
+     * <p>
+     * Copying therefore changes {@code uPool} as well: its store is frozen and replaced by an empty
+     * overlay over it. Lookups in {@code uPool} may run meanwhile and see the same contents either
+     * way, but changes to it must not, since a change made to the frozen store is rejected.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        store = OverlayUTXOStore.over(uPool.share());
+    }
+
+    /**
+     * @return the current contents of the pool, frozen, sending later changes to a new overlay;
+     *         synchronized so that pools copied at once share a single overlay
+     */
+    private synchronized UTXOStore share() {
+        if (!(store instanceof OverlayUTXOStore) || !((OverlayUTXOStore) store).isEmpty())
+            store = OverlayUTXOStore.over(store);
+        return ((OverlayUTXOStore) store).getBase();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        store.addUTXO(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        store.removeUTXO(utxo);
     }
 
     /**
@@ -34,21 +57,21 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return store.getTxOutput(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return store.contains(utxo);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return store.size();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return store.getAllUTXO();
     }
 }
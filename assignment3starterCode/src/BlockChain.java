@@ -1,76 +1,177 @@
-import static java.util.Objects.nonNull;
 import static java.util.Objects.isNull;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
-public class BlockChain {
+public class BlockChain implements AutoCloseable {
     public static final int CUT_OFF_AGE = 10;
-	private Block root;
+    /** most blocks the maintenance task drops while holding the chain's lock */
+    private static final int PRUNE_BATCH = 256;
+    /** most expired transactions the maintenance task drops while holding the chain's lock */
+    private static final int EXPIRY_BATCH = 256;
+    /** how long the maintenance thread waits for more work before it ends */
+    private static final long MAINTENANCE_IDLE_SECONDS = 10;
+    /**
+     * reclaims the blocks no longer retained and the expired transactions, away from the threads
+     * adding blocks and transactions; one thread for this chain, started when there is work
+     */
+    private final ThreadPoolExecutor maintenance;
+	private BlockNode root;
+	private BlockNode tip;
+	private long arrivals;
 	private final TransactionPool txPool;
+	private final SignatureCache sigCache;
+	/** blocks waiting for their parent to be added */
+	private final OrphanBlockPool orphans;
+	/** every block added, kept on disk after the chain lets go of it; null if there is none */
+	private final BlockStore store;
 
-	LinkedHashMap<ByteArrayWrapper, Block> chain;
+	HashMap<ByteArrayWrapper, BlockNode> chain;
+	/**
+	 * the retained blocks by height, in a ring with a bucket for each height from the root's up to
+	 * {@code CUT_OFF_AGE} above it
+	 */
+	private final Bucket[] buckets;
+	/** keeps the UTXO set of the active chain, ending at the tip */
+	private final ReorgEngine reorgEngine;
+	/** the transactions to mine on top of the tip */
+	private final BlockTemplate template;
+	/** roots of subtrees no longer retained but still to be removed from {@code chain} */
+	private final ArrayDeque<BlockNode> deadRoots = new ArrayDeque<>();
+	private boolean pruneScheduled;
+	private boolean expiryScheduled;
 	
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, null);
+    }
+
+    /**
+     * create an empty block chain with just a genesis block, writing every block added, the genesis
+     * block included, to {@code store}, where it can still be read once the chain has dropped it
+     */
+    public BlockChain(Block genesisBlock, BlockStore store) {
         // IMPLEMENT THIS
-        root = genesisBlock;
-        txPool = new TransactionPool();
-        chain = new LinkedHashMap<>();
-        ByteArrayWrapper genesisHash = new ByteArrayWrapper(genesisBlock.getHash());
-		chain.put(genesisHash, genesisBlock);
+        this.store = store;
+        maintenance = new ThreadPoolExecutor(1, 1, MAINTENANCE_IDLE_SECONDS, TimeUnit.SECONDS,
+        		new LinkedBlockingQueue<Runnable>(), r -> {
+        	Thread t = new Thread(r, "BlockChain maintenance");
+        	t.setDaemon(true);
+        	return t;
+        });
+        maintenance.allowCoreThreadTimeOut(true);
+        sigCache = new SignatureCache();
+        txPool = new TransactionPool(sigCache);
+        orphans = new OrphanBlockPool();
+        chain = new HashMap<>();
+        buckets = new Bucket[CUT_OFF_AGE + 1];
+        for (int i = 0; i < buckets.length; i++)
+        	buckets[i] = new Bucket();
+		UTXOPool utxoPool = new UTXOPool();
+		UTXODelta delta = UTXODelta.connect(utxoPool, genesisBlock.getCoinbase(), blockTxs(genesisBlock));
+		root = new BlockNode(genesisBlock, arrivals++, delta);
+		chain.put(root.getHash(), root);
+		bucket(1).add(root);
+		bucket(1).active = root;
+		tip = root;
+		reorgEngine = new ReorgEngine(root, utxoPool, txPool);
+		template = new BlockTemplate(txPool, sigCache, () -> getUTXOPool(tip));
+		if (store != null)
+			store.put(genesisBlock);
+    }
+
+    /**
+     * Stops the maintenance thread once the work scheduled already is done. The chain must not be
+     * changed afterwards; the block store it writes to, if any, is left for the caller to close.
+     */
+    public void close() {
+    	maintenance.shutdown();
     }
 
     /** Get the maximum height block */
-    public Block getMaxHeightBlock() {
-    	HashMap<Block, Integer> blockHeights = new HashMap<>(chain.size());
-    	int maxHeight = 0;
-    	Block maxBlock = null;
-    	blockHeights.put(root, Integer.valueOf(1));
-    	for (Block b: chain.values()) {
-    		int h = getBlockHeight(b, blockHeights);
-    		if (h > maxHeight) {
-    			maxHeight = h;
-    			maxBlock = b;
-    		}
-    	}
-    	return maxBlock;
-    }
-
-    private int getBlockHeight(Block cursor, HashMap<Block, Integer> blockHeights) {
-    	Integer h = blockHeights.get(cursor);
-    	if (nonNull(h)) {
-    		return h.intValue();
-    	} else {
-    		byte[] prevBlockHash = cursor.getPrevBlockHash();
-			Block parent = chain.get(new ByteArrayWrapper(prevBlockHash));
-    		int myHeight = 1 + getBlockHeight(parent, blockHeights);
-    		blockHeights.put(cursor, Integer.valueOf(myHeight));
-    		return myHeight;
-    	}
+    public synchronized Block getMaxHeightBlock() {
+    	return tip.getBlock();
+    }
+
+     synchronized int getBlockHeight(Block cursor) {
+    	 return getNode(cursor).getHeight();
     }
 
-     int getBlockHeight(Block cursor) {
-    	 int height = 1;
-    	 while (cursor != root) {
-     		byte[] prevBlockHash = cursor.getPrevBlockHash();
- 			cursor = chain.get(new ByteArrayWrapper(prevBlockHash));
-     		++height;
-     	}
-    	return height;
+    /**
+     * Get the block with hash {@code hash}, from memory if it is still retained or from the block
+     * store otherwise; null if it is in neither
+     */
+    public synchronized Block getBlock(byte[] hash) {
+    	BlockNode node = chain.get(new ByteArrayWrapper(hash));
+    	if (node != null && isRetained(node))
+    		return node.getBlock();
+    	return store == null ? null : store.get(hash);
     }
+
+    private BlockNode getNode(Block b) {
+    	return chain.get(new ByteArrayWrapper(b.getHash()));
+    }
+
     /** Get the UTXOPool for mining a new block on top of max height block */
-    public UTXOPool getMaxHeightUTXOPool() {
-        // IMPLEMENT THIS
-    	return null; // TODO
+    public synchronized UTXOPool getMaxHeightUTXOPool() {
+        // IMPLEMENT THIS: DONE
+    	return getUTXOPool(tip);
+    }
+
+    private UTXOPool getUTXOPool(BlockNode target) {
+    	return reorgEngine.getUTXOPool(target);
+    }
+
+    /**
+     * Get the hashes of blocks on the active chain from the max height block back to the oldest
+     * retained one: the first ten one apart, then exponentially further apart, so that a peer can
+     * find where its chain forks from this one in a few round trips
+     */
+    public synchronized ArrayList<byte[]> getBlockLocator() {
+    	ArrayList<byte[]> locator = new ArrayList<>();
+    	int step = 1;
+    	for (BlockNode node = tip; ; ) {
+    		locator.add(node.getBlock().getHash());
+    		if (node == root)
+    			return locator;
+    		if (locator.size() >= 10)
+    			step *= 2;
+    		node = node.getAncestor(Math.max(node.getHeight() - step, root.getHeight()));
+    	}
+    }
+
+    /**
+     * Get the last block on both the active chain and the chain a peer described by
+     * {@code locator}, or null if none of the blocks in it are retained
+     */
+    public synchronized Block findFork(List<byte[]> locator) {
+    	for (byte[] hash: locator) {
+    		BlockNode node = chain.get(new ByteArrayWrapper(hash));
+    		if (node != null && isRetained(node))
+    			return BlockNode.findFork(node, tip, root.getHeight()).getBlock();
+    	}
+    	return null;
+    }
+
+    /** The transactions of {@code blk} other than its coinbase, which a block may also list first */
+    static ArrayList<Transaction> blockTxs(Block blk) {
+    	ArrayList<Transaction> txs = new ArrayList<>(blk.getTransactions());
+    	if (!txs.isEmpty() && txs.get(0).equals(blk.getCoinbase()))
+    		txs.remove(0);
+    	return txs;
     }
     
     /** Get the transaction pool to mine a new block */
@@ -79,6 +180,29 @@ public class BlockChain {
         return txPool;
     }
 
+    /**
+     * Get the transactions to mine on top of the max height block, valid together and in an order
+     * they can be mined in
+     */
+    public synchronized ArrayList<Transaction> getTemplateTransactions() {
+        return template.getTransactions();
+    }
+
+    /** Get the template the transactions to mine come from */
+    public BlockTemplate getBlockTemplate() {
+        return template;
+    }
+
+    /** Get what switches the chain between branches, and its record of reorganizations */
+    public ReorgEngine getReorgEngine() {
+        return reorgEngine;
+    }
+
+    /** Get the record of signatures already verified, shared by everything validating for this chain */
+    public SignatureCache getSignatureCache() {
+        return sigCache;
+    }
+
     /**
      * Add {@code block} to the block chain if it is valid. For validity, all transactions should be
      * valid and block should be at {@code height > (maxHeight - CUT_OFF_AGE)}.
@@ -89,90 +213,183 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      * 
+     * <p>
+     * A block whose parent has not been added yet is kept aside, and added once its parent is,
+     * along with any of its own children that were waiting for it.
+     * 
      * @return true if block is successfully added
      */
-    public boolean addBlock(Block blk) {
-    	ByteArrayWrapper blockHash = new ByteArrayWrapper(blk.getHash());
+    public synchronized boolean addBlock(Block blk) {
     	byte[] prevBlockHash = blk.getPrevBlockHash();
     	if (isNull(prevBlockHash)) return false;
-		ByteArrayWrapper prevHash = new ByteArrayWrapper(prevBlockHash);
-		Block prevBlock = chain.get(prevHash);
-		if (isNull(prevBlock)) return false;
-		
-		for (Transaction blkT: blk.getTransactions()) {
-			byte[] hash = blkT.getHash();
-			Transaction poolT = txPool.getTransaction(hash);
-			if (isNull(poolT)) return false;
+		BlockNode prevNode = chain.get(new ByteArrayWrapper(prevBlockHash));
+		if (isNull(prevNode)) {
+			orphans.add(blk);
+			return false;
+		}
+		if (!connectBlock(blk, prevNode)) return false;
+
+		ArrayDeque<Block> connected = new ArrayDeque<>();
+		connected.add(blk);
+		while (!connected.isEmpty()) {
+			Block parent = connected.poll();
+			BlockNode parentNode = getNode(parent);
+			for (Block child: orphans.removeChildren(parent.getHash())) {
+				// the parent may have been pruned by one of its own children
+				if (parentNode != null && connectBlock(child, parentNode))
+					connected.add(child);
+			}
 		}
-		int blockHeight = getBlockHeight(prevBlock);
-		if (blockHeight > CUT_OFF_AGE) return false;
-    	if (CUT_OFF_AGE == blockHeight) {
-    		trimChain(prevBlock); 		
+		scheduleExpiry();
+		return true;
+    }
+
+    /** Get the blocks waiting for their parent */
+    public OrphanBlockPool getOrphanBlockPool() {
+    	return orphans;
+    }
+
+    /** Adds {@code blk}, a child of {@code prevNode}, if it is valid */
+    private boolean connectBlock(Block blk, BlockNode prevNode) {
+    	ByteArrayWrapper blockHash = new ByteArrayWrapper(blk.getHash());
+		if (!isRetained(prevNode)) return false;
+		if (chain.containsKey(blockHash)) return false;
+		int age = prevNode.getHeight() - root.getHeight() + 1;
+		if (age > CUT_OFF_AGE) return false;
+
+		UTXOPool pool = getUTXOPool(prevNode);
+		ArrayList<Transaction> txs = blockTxs(blk);
+		// the handler works on its own copy, leaving pool as it was for the delta
+		TxHandler handler = new TxHandler(pool, sigCache);
+		Transaction[] accepted = handler.handleTxs(txs.toArray(new Transaction[txs.size()]));
+		if (accepted.length != txs.size()) return false;
+
+		UTXODelta delta = UTXODelta.connect(pool, blk.getCoinbase(), Arrays.asList(accepted));
+		BlockNode node = new BlockNode(blk, prevNode, arrivals++, delta);
+		if (store != null)
+			store.put(blk);
+    	chain.put(node.getHash(), node);
+    	prevNode.addChild(node);
+    	bucket(node.getHeight()).add(node);
+    	if (node.getHeight() > tip.getHeight()) {
+    		setTip(node);
+    		template.invalidate();
+    		reorgEngine.activate(node);
+    	}
+    	if (CUT_OFF_AGE == age) {
+    		advanceRoot();
     	}
-    	chain.put(blockHash, blk);
     	return true;
+    }
+
+    /** Makes {@code node} the tip, and its branch the active chain recorded in the buckets */
+    private void setTip(BlockNode node) {
+    	tip = node;
+    	for (BlockNode n = node; n != null && bucket(n.getHeight()).active != n; n = n.getParent())
+    		bucket(n.getHeight()).active = n;
+    }
 
+    private Bucket bucket(int height) {
+    	return buckets[height % buckets.length];
     }
 
-    private void trimChain(Block start) {
-		Block cursor = start;
-		Block child = start;
-		ByteArrayWrapper parentHash = null;
-		HashMap<Block, Boolean> blockStatus = new HashMap<>(chain.size());
-		do {
-	    	byte[] parentHashBytes = cursor.getPrevBlockHash();
-			parentHash = new ByteArrayWrapper(parentHashBytes);
-			child = cursor;
-			blockStatus.put(cursor, Boolean.FALSE);
-			cursor = chain.get(parentHash);
-		} while (cursor != root);
-		blockStatus.put(root, Boolean.TRUE);
-    	for (Block b: chain.values()) {
-    		boolean status = isOrphan(b, blockStatus);
+    /**
+     * Moves the root one block up the active chain, dropping the old root. Every block descended
+     * from the old root but not from the new one stops being retained at once, but is only removed
+     * from {@code chain} later by the maintenance task. Only called when the tip is
+     * {@code CUT_OFF_AGE} above the root, so the tip is never dropped.
+     */
+    private void advanceRoot() {
+    	BlockNode oldRoot = root;
+    	root = bucket(oldRoot.getHeight() + 1).active;
+    	// the bucket is reused for the next height; whatever is left in it is dead already
+    	bucket(oldRoot.getHeight()).clear();
+    	for (BlockNode sibling: oldRoot.getChildren()) {
+    		if (sibling != root)
+    			deadRoots.add(sibling);
     	}
-		removeOrphans(blockStatus);
-		root = child;
-	}
+    	chain.remove(oldRoot.getHash());
+    	oldRoot.detach();
+    	root.detachParent();
+    	reorgEngine.setRoot(root);
+    	if (!deadRoots.isEmpty() && !pruneScheduled) {
+    		pruneScheduled = true;
+    		maintenance.execute(this::pruneSome);
+    	}
+    }
 
-	private void removeOrphans(HashMap<Block, Boolean> blockStatus) {
-    	for (Entry<Block, Boolean> e: blockStatus.entrySet()) {
-    		boolean isDead = e.getValue().booleanValue();
-			if (isDead) {
-    			chain.remove(new ByteArrayWrapper(e.getKey().getHash()));
-    		}
+    /** Removes a batch of the blocks no longer retained, scheduling itself again if more are left */
+    private synchronized void pruneSome() {
+    	for (int i = 0; i < PRUNE_BATCH && !deadRoots.isEmpty(); i++) {
+    		BlockNode node = deadRoots.poll();
+    		deadRoots.addAll(node.getChildren());
+    		chain.remove(node.getHash());
+    		// buckets below the root have been cleared already
+    		if (node.getHeight() >= root.getHeight())
+    			bucket(node.getHeight()).remove(node);
+    		node.detach();
     	}
-	}
+    	if (deadRoots.isEmpty())
+    		pruneScheduled = false;
+    	else
+    		maintenance.execute(this::pruneSome);
+    }
 
-	private boolean isOrphan(Block cursor, HashMap<Block, Boolean> blockStatus) {
-    	Boolean dead = blockStatus.get(cursor);
-    	if (nonNull(dead)) {
-    		return dead.booleanValue();
-    	} else {
-    		byte[] prevBlockHash = cursor.getPrevBlockHash();
-    		Block parent = chain.get(new ByteArrayWrapper(prevBlockHash));
-    		boolean myStatus = isOrphan(parent, blockStatus);
-    		blockStatus.put(cursor, Boolean.valueOf(myStatus));
-    		return myStatus;
+    /** Has the maintenance task expire the pool's stale transactions, if any are due */
+    private void scheduleExpiry() {
+    	if (!expiryScheduled && txPool.isExpiryDue(System.nanoTime())) {
+    		expiryScheduled = true;
+    		maintenance.execute(this::expireSome);
     	}
-	}
+    }
+
+    /**
+     * Expires a batch of the pool's stale transactions, scheduling itself again if more are due. The
+     * pool is only safe to change under the chain's lock, so the batch bounds how long each run
+     * holds it rather than keeping expiry off it.
+     */
+    private synchronized void expireSome() {
+    	long now = System.nanoTime();
+    	txPool.expire(now, EXPIRY_BATCH);
+    	if (txPool.isExpiryDue(now))
+    		maintenance.execute(this::expireSome);
+    	else
+    		expiryScheduled = false;
+    }
+
+    /**
+     * @return true if {@code node} is still retained: it is the root or descends from it, even if
+     *         the maintenance task has not yet removed it from {@code chain}
+     */
+    private boolean isRetained(BlockNode node) {
+    	if (node.getHeight() < root.getHeight())
+    		return false;
+    	if (bucket(node.getHeight()).active == node)
+    		return true;
+    	return node.getAncestor(root.getHeight()) == root;
+    }
 
-	/** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
+	/**
+	 * Add a transaction to the transaction pool if it is valid on top of the max height block, or
+	 * keep it aside until the transactions it spends from arrive
+	 */
+    public synchronized void addTransaction(Transaction tx) {
         // IMPLEMENT THIS: DONE
-        txPool.addTransaction(tx);
+        txPool.admit(tx, getUTXOPool(tip));
+        scheduleExpiry();
     }
     
-    public void dumpChain() {
-    	HashMap<Block, Integer> blockHeights = new HashMap<>(chain.size());
-    	blockHeights.put(root, Integer.valueOf(1));
-    	for (Block b: chain.values()) {
-    		int h = getBlockHeight(b, blockHeights);
-    		System.err.println("Block "+b.hashCode()+" height " + h);
+    public synchronized void dumpChain() {
+    	for (int h = root.getHeight(); h <= tip.getHeight(); h++) {
+    		for (BlockNode b: bucket(h).nodes) {
+    			System.err.println("Block "+b.getBlock().hashCode()+" height " + b.getHeight());
+    		}
     	}
     }
     
-    boolean contains(Block b) {
-    	return chain.containsKey(new ByteArrayWrapper(b.getHash()));
+    synchronized boolean contains(Block b) {
+    	BlockNode node = getNode(b);
+    	return node != null && isRetained(node);
     }
 
 	static void log(String msg, Block obj) {
@@ -182,4 +399,29 @@ public class BlockChain {
 	static void log(String msg) {
 		System.err.println(msg);
 	}
-}
\ No newline at end of file
+
+	/** The retained blocks at one height, and the one of them on the active chain */
+	private static final class Bucket {
+		final ArrayList<BlockNode> nodes = new ArrayList<>();
+		BlockNode active;
+
+		void add(BlockNode node) {
+			node.setBucketIndex(nodes.size());
+			nodes.add(node);
+		}
+
+		void clear() {
+			nodes.clear();
+			active = null;
+		}
+
+		void remove(BlockNode node) {
+			int i = node.getBucketIndex();
+			BlockNode last = nodes.remove(nodes.size() - 1);
+			if (last != node) {
+				nodes.set(i, last);
+				last.setBucketIndex(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Serializes blocks and their transactions for the {@link BlockStore}. A block is written as its
+ * hash, its previous block hash, the address its coinbase pays and its transactions; a transaction
+ * as a coinbase flag, its hash, its inputs with their signatures and its outputs, each address in
+ * its X.509 encoding. Byte arrays are prefixed with their length, -1 standing for null. Decoding
+ * rebuilds the objects through their usual constructors, so hashes and raw forms come out as they
+ * went in.
+ */
+public final class BlockCodec {
+
+    private BlockCodec() {
+    }
+
+    public static byte[] encode(Block block) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(block));
+        putBytes(buf, block.getHash());
+        putBytes(buf, block.getPrevBlockHash());
+        putBytes(buf, block.getCoinbase().getOutput(0).address.getEncoded());
+        buf.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            putTransaction(buf, tx);
+        return buf.array();
+    }
+
+    /**
+     * @return the block encoded in {@code data}
+     * @throws IllegalArgumentException if {@code data} is not an encoded block
+     */
+    public static Block decode(byte[] data) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            HashMap<ByteArrayWrapper, PublicKey> keys = new HashMap<ByteArrayWrapper, PublicKey>();
+            byte[] hash = getBytes(buf);
+            byte[] prevHash = getBytes(buf);
+            Block block = new Block(prevHash, getKey(buf, keys));
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++)
+                block.addTransaction(getTransaction(buf, keys));
+            block.finalize();
+            if (!Arrays.equals(hash, block.getHash()))
+                throw new IllegalArgumentException("block does not hash to its recorded hash");
+            return block;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated block", e);
+        }
+    }
+
+    /** @return the hash recorded at the start of an encoded block, without decoding the rest */
+    public static byte[] hashOf(byte[] data) {
+        return getBytes(ByteBuffer.wrap(data));
+    }
+
+    private static int encodedSize(Block block) {
+        int size = bytesSize(block.getHash()) + bytesSize(block.getPrevBlockHash())
+                + bytesSize(block.getCoinbase().getOutput(0).address.getEncoded()) + Integer.BYTES;
+        for (Transaction tx : block.getTransactions())
+            size += transactionSize(tx);
+        return size;
+    }
+
+    private static int transactionSize(Transaction tx) {
+        int size = 1 + bytesSize(tx.getHash()) + 2 * Integer.BYTES;
+        for (Transaction.Input in : tx.getInputs())
+            size += bytesSize(in.prevTxHash) + Integer.BYTES + bytesSize(in.signature);
+        for (Transaction.Output op : tx.getOutputs())
+            size += Double.BYTES + bytesSize(op.address.getEncoded());
+        return size;
+    }
+
+    private static void putTransaction(ByteBuffer buf, Transaction tx) {
+        buf.put((byte) (tx.isCoinbase() ? 1 : 0));
+        putBytes(buf, tx.getHash());
+        buf.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(buf, in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            putBytes(buf, in.signature);
+        }
+        buf.putInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            buf.putDouble(op.value);
+            putBytes(buf, op.address.getEncoded());
+        }
+    }
+
+    private static Transaction getTransaction(ByteBuffer buf, HashMap<ByteArrayWrapper, PublicKey> keys) {
+        boolean coinbase = buf.get() != 0;
+        byte[] hash = getBytes(buf);
+        int inputs = buf.getInt();
+        if (coinbase) {
+            if (inputs != 0 || buf.getInt() != 1)
+                throw new IllegalArgumentException("coinbase must have no input and one output");
+            double value = buf.getDouble();
+            return checkHash(new Transaction(value, getKey(buf, keys)), hash);
+        }
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++) {
+            tx.addInput(getBytes(buf), buf.getInt());
+            byte[] signature = getBytes(buf);
+            if (signature != null)
+                tx.addSignature(signature, i);
+        }
+        int outputs = buf.getInt();
+        for (int i = 0; i < outputs; i++) {
+            double value = buf.getDouble();
+            tx.addOutput(value, getKey(buf, keys));
+        }
+        // a transaction whose id was set rather than computed keeps it
+        if (hash != null && !Arrays.equals(hash, sha256(tx.getRawTx())))
+            tx.setHash(hash);
+        else
+            tx.finalize();
+        return tx;
+    }
+
+    private static Transaction checkHash(Transaction tx, byte[] hash) {
+        if (!Arrays.equals(hash, tx.getHash()))
+            throw new IllegalArgumentException("coinbase does not hash to its recorded hash");
+        return tx;
+    }
+
+    /** Reads an address, decoding each distinct one only once per block */
+    private static PublicKey getKey(ByteBuffer buf, HashMap<ByteArrayWrapper, PublicKey> keys) {
+        byte[] encoded = getBytes(buf);
+        if (encoded == null)
+            throw new IllegalArgumentException("missing address");
+        ByteArrayWrapper wrapped = new ByteArrayWrapper(encoded);
+        PublicKey key = keys.get(wrapped);
+        if (key == null) {
+            try {
+                key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new IllegalArgumentException("corrupt address", e);
+            }
+            keys.put(wrapped, key);
+        }
+        return key;
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return Integer.BYTES + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        if (length > buf.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A block in the {@link BlockChain} index, together with what was worked out about it when it
+ * was added: its parent, its height, the order in which it arrived and what it did to the UTXO set
+ * of its parent. Nodes also link to their children, so that a subtree can be visited from its root,
+ * and each carries a skip pointer to an earlier ancestor, chosen as in Bitcoin's block index so
+ * that any ancestor can be reached in a logarithmic number of steps.
+ */
+public class BlockNode {
+
+    private Block block;
+    private final ByteArrayWrapper hash;
+    private BlockNode parent;
+    private BlockNode skip;
+    private final int height;
+    private final long arrival;
+    private UTXODelta delta;
+    private ArrayList<BlockNode> children;
+    /** where this node is in the list of blocks at its height kept by the chain */
+    private int bucketIndex;
+
+    /** Creates the node of the oldest block of a chain, at height 1 */
+    public BlockNode(Block block, long arrival, UTXODelta delta) {
+        this(block, null, 1, arrival, delta);
+    }
+
+    /** Creates the node of {@code block}, a child of {@code parent} */
+    public BlockNode(Block block, BlockNode parent, long arrival, UTXODelta delta) {
+        this(block, parent, parent.height + 1, arrival, delta);
+    }
+
+    private BlockNode(Block block, BlockNode parent, int height, long arrival, UTXODelta delta) {
+        this.block = block;
+        this.hash = new ByteArrayWrapper(block.getHash());
+        this.parent = parent;
+        this.height = height;
+        this.arrival = arrival;
+        this.delta = delta;
+        if (parent != null)
+            skip = parent.getAncestor(skipHeight(height));
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public ByteArrayWrapper getHash() {
+        return hash;
+    }
+
+    /** @return the node of the parent block, or null once the parent is no longer retained */
+    public BlockNode getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the ancestor of this block at {@code height}, this block itself at its own height, or
+     *         null if there is none or it is no longer retained
+     */
+    public BlockNode getAncestor(int height) {
+        if (height > this.height || height < 1)
+            return null;
+        BlockNode walk = this;
+        int walkHeight = this.height;
+        while (walkHeight > height && walk != null) {
+            int skipTo = skipHeight(walkHeight);
+            int prevSkipTo = skipHeight(walkHeight - 1);
+            // take the skip unless the parent's skip lands closer without overshooting
+            if (walk.skip != null && (skipTo == height
+                    || (skipTo > height && !(prevSkipTo < skipTo - 2 && prevSkipTo >= height)))) {
+                walk = walk.skip;
+                walkHeight = skipTo;
+            } else {
+                walk = walk.parent;
+                walkHeight--;
+            }
+        }
+        return walk;
+    }
+
+    /**
+     * @return the last block on both the branch of {@code a} and that of {@code b}, or null if they
+     *         share none at or above {@code lowest}, the height of the oldest retained block. Both
+     *         must be retained. Ancestors below {@code lowest} are never compared: their nodes may be
+     *         detached, so walks from two blocks can end at a detached node or at null alike.
+     */
+    public static BlockNode findFork(BlockNode a, BlockNode b, int lowest) {
+        int height = Math.min(a.height, b.height);
+        if (height < lowest)
+            return null;
+        a = a.getAncestor(height);
+        b = b.getAncestor(height);
+        if (a == b)
+            return a;
+        if (a.getAncestor(lowest) != b.getAncestor(lowest))
+            return null;
+        // the ancestors agree up to the fork and differ above it
+        int same = lowest;
+        int different = height;
+        while (different - same > 1) {
+            int mid = (same + different) >>> 1;
+            if (a.getAncestor(mid) == b.getAncestor(mid))
+                same = mid;
+            else
+                different = mid;
+        }
+        return a.getAncestor(same);
+    }
+
+    /** @return the height the skip pointer of a block at {@code height} goes to */
+    private static int skipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // clear the lowest one bit, once or twice, so that the skip heights of neighbouring blocks
+        // differ enough for a walk to combine them
+        return (height & 1) != 0 ? clearLowestOne(clearLowestOne(height - 1)) + 1 : clearLowestOne(height);
+    }
+
+    private static int clearLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /** @return the number of blocks from the genesis block to this one, counting both */
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return the position of this block in the order blocks were added to the chain */
+    public long getArrival() {
+        return arrival;
+    }
+
+    /** @return the changes this block made to the UTXO set of its parent */
+    public UTXODelta getDelta() {
+        return delta;
+    }
+
+    /** @return the nodes of the blocks added on top of this one */
+    public List<BlockNode> getChildren() {
+        if (children == null)
+            return Collections.emptyList();
+        return children;
+    }
+
+    void addChild(BlockNode child) {
+        if (children == null)
+            children = new ArrayList<BlockNode>(1);
+        children.add(child);
+    }
+
+    int getBucketIndex() {
+        return bucketIndex;
+    }
+
+    void setBucketIndex(int bucketIndex) {
+        this.bucketIndex = bucketIndex;
+    }
+
+    /** Forgets the parent, so that a block no longer retained can be garbage collected */
+    void detachParent() {
+        parent = null;
+    }
+
+    /**
+     * Forgets the links and contents of a block no longer retained, so that skip pointers still
+     * reaching it from retained blocks hold on to no more than the node itself
+     */
+    void detach() {
+        parent = null;
+        skip = null;
+        children = null;
+        block = null;
+        delta = null;
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.function.LongPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * Blocks kept on disk, so that they survive a restart and can be served after the chain has let go
+ * of them. Blocks are appended to segment files, {@code blk00000.dat} and on, each record framed by
+ * its length and a CRC-32 of its {@link BlockCodec} encoding. A memory-mapped index next to them,
+ * an open-addressing table like the one of {@link MappedUTXOStore}, maps each block hash to the
+ * segment, offset and length of its record, so a block is read back with one lookup and one read.
+ *
+ * <p>
+ * Writes are forced to disk in batches rather than one by one: once enough blocks or bytes have
+ * been appended, the segments are forced, then the index, whose header records how far the
+ * segments are durable. Opening the store checks the records past that point, keeps the ones that
+ * are whole and truncates the segments at the first torn one. Unless the store was closed
+ * cleanly, the index is then rebuilt from the entries before that point and the records recovered
+ * after it, since pages of the index may have reached the disk ahead of the records they point at;
+ * so the index never points at a block that did not make it to disk.
+ */
+public class BlockStore implements Closeable {
+
+    /** segments are not grown past this unless a single block is larger */
+    public static final long SEGMENT_BYTES = 64L << 20;
+    /** blocks appended between syncs */
+    public static final int SYNC_BLOCKS = 64;
+    /** bytes appended between syncs */
+    public static final long SYNC_BYTES = 4L << 20;
+
+    private static final long MAGIC = 0x424c4f434b494458L;
+    private static final int HEADER_BYTES = 4096;
+    private static final int MAGIC_AT = 0;
+    private static final int CAPACITY_AT = 8;
+    private static final int SIZE_AT = 16;
+    private static final int DURABLE_SEGMENT_AT = 24;
+    private static final int DURABLE_END_AT = 32;
+    /** nonzero if the store was closed, and nothing written to the index since */
+    private static final int CLEAN_AT = 40;
+
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_BYTES = 64;
+    private static final int SEGMENT_AT = 32;
+    private static final int USED_AT = 36;
+    private static final int OFFSET_AT = 40;
+    private static final int LENGTH_AT = 48;
+
+    private static final long MIN_CAPACITY = 1024;
+    /** the most slots a single mapping of the index holds */
+    private static final long MAX_CAPACITY = 1L << 24;
+    private static final double MAX_LOAD = 0.7;
+    /** length and checksum before each record */
+    private static final int FRAME_BYTES = 8;
+
+    private final Path dir;
+    private final ArrayList<FileChannel> segments;
+    private Index index;
+    /** where the last segment ends */
+    private long end;
+    private int unsyncedBlocks;
+    private long unsyncedBytes;
+
+    private BlockStore(Path dir, Index index, ArrayList<FileChannel> segments, long end) {
+        this.dir = dir;
+        this.index = index;
+        this.segments = segments;
+        this.end = end;
+    }
+
+    /**
+     * Opens the store kept in directory {@code dir}, creating it if it does not exist, and recovers
+     * the blocks appended since it was last synced
+     */
+    public static BlockStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path indexPath = dir.resolve("index");
+        Index index = Files.exists(indexPath) ? Index.open(indexPath) : Index.create(indexPath, MIN_CAPACITY);
+        ArrayList<FileChannel> segments = new ArrayList<FileChannel>();
+        for (int i = 0; Files.exists(segmentPath(dir, i)); i++)
+            segments.add(FileChannel.open(segmentPath(dir, i), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (segments.isEmpty())
+            segments.add(FileChannel.open(segmentPath(dir, 0), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+
+        BlockStore store = new BlockStore(dir, index, segments, 0);
+        store.recover();
+        return store;
+    }
+
+    /**
+     * Appends {@code block} unless it is stored already, syncing if enough has been appended since
+     * the last sync
+     *
+     * @return false if the block was stored already
+     */
+    public synchronized boolean put(Block block) {
+        byte[] hash = block.getHash();
+        if (hash.length != HASH_BYTES)
+            throw new IllegalArgumentException("block hash must be " + HASH_BYTES + " bytes");
+        if (index.find(hash) >= 0)
+            return false;
+        try {
+            byte[] data = BlockCodec.encode(block);
+            if (end > 0 && end + FRAME_BYTES + data.length > SEGMENT_BYTES)
+                roll();
+            ByteBuffer record = ByteBuffer.allocate(FRAME_BYTES + data.length);
+            record.putInt(data.length).putInt(checksum(data)).put(data).flip();
+            FileChannel segment = segments.get(segments.size() - 1);
+            while (record.hasRemaining())
+                segment.write(record, end + record.position());
+            add(hash, segments.size() - 1, end, data.length);
+            end += record.limit();
+            unsyncedBytes += record.limit();
+            if (++unsyncedBlocks >= SYNC_BLOCKS || unsyncedBytes >= SYNC_BYTES)
+                sync();
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the block with hash {@code hash}, or null if it is not stored */
+    public synchronized Block get(byte[] hash) {
+        if (hash.length != HASH_BYTES)
+            return null;
+        long slot = index.find(hash);
+        if (slot < 0)
+            return null;
+        try {
+            byte[] data = read(index.segment(slot), index.offset(slot), index.length(slot));
+            if (data == null)
+                throw new IOException("record of block at " + index.offset(slot) + " is corrupt");
+            return BlockCodec.decode(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return hash.length == HASH_BYTES && index.find(hash) >= 0;
+    }
+
+    /** @return the number of blocks stored */
+    public synchronized int size() {
+        return (int) index.size();
+    }
+
+    /** Forces the blocks appended so far to disk, then records in the index that they are durable */
+    public synchronized void sync() throws IOException {
+        segments.get(segments.size() - 1).force(false);
+        index.setDurable(segments.size() - 1, end);
+        index.force();
+        unsyncedBlocks = 0;
+        unsyncedBytes = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        index.setClean(true);
+        index.header.force();
+        for (FileChannel segment : segments)
+            segment.close();
+        index.close();
+    }
+
+    /** Starts a new segment, forcing the last one first since syncs only force the newest */
+    private void roll() throws IOException {
+        segments.get(segments.size() - 1).force(false);
+        segments.add(FileChannel.open(segmentPath(dir, segments.size()), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        end = 0;
+    }
+
+    /**
+     * Checks the records past the durable point, truncating the segments at the first one that is
+     * torn, and rebuilds the index over the durable records and the whole ones after them unless the
+     * store was closed cleanly
+     */
+    private void recover() throws IOException {
+        int durableSegment = index.durableSegment();
+        long durableEnd = index.durableEnd();
+        if (durableSegment >= segments.size()) {
+            durableSegment = segments.size() - 1;
+            durableEnd = segments.get(durableSegment).size();
+        }
+        ArrayList<long[]> recovered = new ArrayList<long[]>();
+        ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+        boolean written = false;
+        long lastEnd = durableEnd;
+        scan: for (int s = durableSegment; s < segments.size(); s++) {
+            FileChannel segment = segments.get(s);
+            long at = s == durableSegment ? durableEnd : 0;
+            long size = segment.size();
+            written |= size > at;
+            while (at < size) {
+                byte[] data = size - at < FRAME_BYTES ? null : readRecord(segment, at, size);
+                byte[] hash = data == null ? null : hashOf(data);
+                if (hash == null) {
+                    segment.truncate(at);
+                    segment.force(true);
+                    for (int rest = segments.size() - 1; rest > s; rest--) {
+                        segments.remove(rest).close();
+                        Files.delete(segmentPath(dir, rest));
+                    }
+                    lastEnd = at;
+                    break scan;
+                }
+                recovered.add(new long[] { s, at, data.length });
+                hashes.add(hash);
+                at += FRAME_BYTES + data.length;
+            }
+            lastEnd = at;
+        }
+        end = lastEnd;
+        if (!written && index.clean()) {
+            // a crash from now on must find the store unclean
+            index.setClean(false);
+            index.header.force();
+            return;
+        }
+
+        final int keepSegment = durableSegment;
+        final long keepEnd = durableEnd;
+        rebuild(index.capacity, slot -> index.segment(slot) < keepSegment
+                || index.segment(slot) == keepSegment && index.offset(slot) < keepEnd);
+        for (int i = 0; i < recovered.size(); i++) {
+            long[] at = recovered.get(i);
+            if (index.find(hashes.get(i)) < 0)
+                add(hashes.get(i), (int) at[0], at[1], (int) at[2]);
+        }
+        sync();
+    }
+
+    /** @return the hash of a block encoding, or null if it does not hold one */
+    private static byte[] hashOf(byte[] data) {
+        try {
+            byte[] hash = BlockCodec.hashOf(data);
+            return hash != null && hash.length == HASH_BYTES ? hash : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void add(byte[] hash, int segment, long offset, int length) {
+        long slot = index.find(hash);
+        if (slot < 0 && index.size() + 1 > index.capacity * MAX_LOAD) {
+            rebuild(index.capacity * 2, s -> true);
+            slot = index.find(hash);
+        }
+        if (slot < 0) {
+            slot = -slot - 1;
+            index.setSize(index.size() + 1);
+        }
+        index.put(slot, hash, segment, offset, length);
+    }
+
+    /**
+     * Rehashes the entries {@code keep} accepts into a table of {@code capacity} slots in a new
+     * file, then puts it in place of the old one
+     */
+    private void rebuild(long capacity, LongPredicate keep) {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalStateException("block index is full");
+        try {
+            Path path = dir.resolve("index");
+            Path next = dir.resolve("index.grow");
+            Files.deleteIfExists(next);
+            Index rebuilt = Index.create(next, capacity);
+            byte[] hash = new byte[HASH_BYTES];
+            long size = 0;
+            for (long slot = 0; slot < index.capacity; slot++) {
+                if (!index.used(slot) || !keep.test(slot))
+                    continue;
+                index.hash(slot, hash);
+                long to = -rebuilt.find(hash) - 1;
+                rebuilt.put(to, hash, index.segment(slot), index.offset(slot), index.length(slot));
+                size++;
+            }
+            rebuilt.setSize(size);
+            rebuilt.setDurable(index.durableSegment(), index.durableEnd());
+            rebuilt.force();
+            index.close();
+            Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index = rebuilt;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the payload of the record at {@code offset}, or null if its checksum does not match */
+    private byte[] read(int segment, long offset, int length) throws IOException {
+        FileChannel channel = segments.get(segment);
+        ByteBuffer record = ByteBuffer.allocate(FRAME_BYTES + length);
+        readFully(channel, record, offset);
+        if (record.getInt(0) != length)
+            return null;
+        byte[] data = new byte[length];
+        record.position(FRAME_BYTES);
+        record.get(data);
+        return checksum(data) == record.getInt(Integer.BYTES) ? data : null;
+    }
+
+    /**
+     * @return the payload of the record at {@code offset} in a segment of {@code size} bytes, or
+     *         null if it runs past the end or its checksum does not match
+     */
+    private static byte[] readRecord(FileChannel channel, long offset, long size) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+        readFully(channel, frame, offset);
+        int length = frame.getInt(0);
+        if (length < 0 || length > size - offset - FRAME_BYTES)
+            return null;
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(channel, data, offset + FRAME_BYTES);
+        return checksum(data.array()) == frame.getInt(Integer.BYTES) ? data.array() : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0)
+                throw new IOException("block segment truncated at " + position);
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static Path segmentPath(Path dir, int segment) {
+        return dir.resolve(String.format("blk%05d.dat", segment));
+    }
+
+    /** The mapped index file: a header followed by the slots */
+    private static final class Index {
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final MappedByteBuffer slots;
+        final long capacity;
+        final long mask;
+
+        private Index(FileChannel channel, long capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            mask = capacity - 1;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            slots = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES, capacity * SLOT_BYTES);
+        }
+
+        static Index create(Path path, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Index index = new Index(channel, capacity);
+            index.header.putLong(MAGIC_AT, MAGIC);
+            index.header.putLong(CAPACITY_AT, capacity);
+            index.setSize(0);
+            index.setDurable(0, 0);
+            return index;
+        }
+
+        static Index open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer head = ByteBuffer.allocate(CAPACITY_AT + Long.BYTES);
+            channel.read(head, 0);
+            if (head.getLong(MAGIC_AT) != MAGIC) {
+                channel.close();
+                throw new IOException(path + " is not a block index");
+            }
+            return new Index(channel, head.getLong(CAPACITY_AT));
+        }
+
+        long size() {
+            return header.getLong(SIZE_AT);
+        }
+
+        void setSize(long size) {
+            header.putLong(SIZE_AT, size);
+        }
+
+        int durableSegment() {
+            return (int) header.getLong(DURABLE_SEGMENT_AT);
+        }
+
+        long durableEnd() {
+            return header.getLong(DURABLE_END_AT);
+        }
+
+        boolean clean() {
+            return header.getLong(CLEAN_AT) != 0;
+        }
+
+        void setClean(boolean clean) {
+            header.putLong(CLEAN_AT, clean ? 1 : 0);
+        }
+
+        void setDurable(int segment, long end) {
+            header.putLong(DURABLE_SEGMENT_AT, segment);
+            header.putLong(DURABLE_END_AT, end);
+        }
+
+        /** @return the slot holding {@code hash}, or {@code -slot - 1} for the free slot it would take */
+        long find(byte[] hash) {
+            long slot = ByteBuffer.wrap(hash).getLong(0) & mask;
+            while (used(slot)) {
+                if (sameHash(slot, hash))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        void put(long slot, byte[] hash, int segment, long offset, int length) {
+            int at = offset(slot, 0);
+            for (int i = 0; i < HASH_BYTES; i++)
+                slots.put(at + i, hash[i]);
+            slots.putInt(at + SEGMENT_AT, segment);
+            slots.putLong(at + OFFSET_AT, offset);
+            slots.putInt(at + LENGTH_AT, length);
+            slots.putInt(at + USED_AT, 1);
+        }
+
+        boolean used(long slot) {
+            return slots.getInt(offset(slot, USED_AT)) != 0;
+        }
+
+        int segment(long slot) {
+            return slots.getInt(offset(slot, SEGMENT_AT));
+        }
+
+        long offset(long slot) {
+            return slots.getLong(offset(slot, OFFSET_AT));
+        }
+
+        int length(long slot) {
+            return slots.getInt(offset(slot, LENGTH_AT));
+        }
+
+        void hash(long slot, byte[] hash) {
+            int at = offset(slot, 0);
+            for (int i = 0; i < HASH_BYTES; i++)
+                hash[i] = slots.get(at + i);
+        }
+
+        void force() {
+            header.force();
+            slots.force();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private boolean sameHash(long slot, byte[] hash) {
+            int at = offset(slot, 0);
+            for (int i = 0; i < HASH_BYTES; i++) {
+                if (slots.get(at + i) != hash[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private int offset(long slot, int field) {
+            return (int) (slot * SLOT_BYTES) + field;
+        }
+    }
+}
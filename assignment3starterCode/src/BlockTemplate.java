@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The transactions of the next block to mine on top of the max height block, kept valid as the
+ * transaction pool changes rather than worked out again for every block. A transaction entering
+ * the pool is checked against the UTXO set after the template's own transactions and appended if
+ * valid, which only touches its inputs and outputs. A transaction of the template leaving the pool
+ * drops the template, as does a change of tip; it is then rebuilt from the whole pool the next time
+ * it is asked for, so a burst of changes costs a single rebuild.
+ */
+public class BlockTemplate implements TransactionPool.Listener {
+
+    private final TransactionPool txPool;
+    private final SignatureCache sigCache;
+    /** the UTXO set of the max height block, for rebuilding */
+    private final Supplier<UTXOPool> tipPool;
+
+    /** the template's transactions, in an order they can be mined in */
+    private final LinkedHashMap<ByteArrayWrapper, Transaction> txs;
+    /** holds the UTXO set after the template's transactions */
+    private TxHandler handler;
+    private boolean stale;
+    private long rebuilds;
+
+    /**
+     * @param txPool the pool the template's transactions come from, whose changes it follows
+     * @param tipPool gives the UTXO set of the max height block
+     */
+    public BlockTemplate(TransactionPool txPool, SignatureCache sigCache, Supplier<UTXOPool> tipPool) {
+        this.txPool = txPool;
+        this.sigCache = sigCache;
+        this.tipPool = tipPool;
+        txs = new LinkedHashMap<ByteArrayWrapper, Transaction>();
+        stale = true;
+        txPool.addListener(this);
+    }
+
+    /** @return the transactions to mine next, rebuilding them first if the template was dropped */
+    public ArrayList<Transaction> getTransactions() {
+        if (stale) {
+            txs.clear();
+            handler = new TxHandler(new UTXOPool(tipPool.get()), sigCache);
+            Transaction[] pooled = new Transaction[txPool.size()];
+            int n = 0;
+            for (Transaction tx : txPool.byAncestorFeeRate())
+                pooled[n++] = tx;
+            for (Transaction tx : handler.handleTxs(pooled))
+                txs.put(new ByteArrayWrapper(tx.getHash()), tx);
+            stale = false;
+            ++rebuilds;
+        }
+        return new ArrayList<Transaction>(txs.values());
+    }
+
+    /** Drops the template, for instance because the max height block changed */
+    public void invalidate() {
+        stale = true;
+        txs.clear();
+        handler = null;
+    }
+
+    /** @return the number of times the template has been built from the whole pool */
+    public long getRebuildCount() {
+        return rebuilds;
+    }
+
+    public void added(Transaction tx) {
+        if (stale)
+            return;
+        Transaction[] accepted = handler.handleTxs(new Transaction[] { tx });
+        if (accepted.length == 1)
+            txs.put(new ByteArrayWrapper(tx.getHash()), tx);
+    }
+
+    public void removed(Transaction tx) {
+        if (!stale && txs.containsKey(new ByteArrayWrapper(tx.getHash())))
+            invalidate();
+    }
+}
@@ -1,11 +1,48 @@
 import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Crypto {
 
+    /** Outcome of a signature check */
+    public enum Result {
+        /** the signature is valid */
+        VALID,
+        /** the signature was checked and does not match the message and key */
+        INVALID,
+        /** the signature or the message is missing, or the signature cannot be decoded */
+        MALFORMED,
+        /** the key is missing or cannot be used to verify RSA signatures */
+        INVALID_KEY,
+        /** no provider implements the signature algorithm */
+        UNAVAILABLE
+    }
+
+    private static final String ALGORITHM = "SHA256withRSA";
+
+    /** number of prepared keys kept for the addresses seen most recently */
+    static final int KEY_CACHE_SIZE = 1024;
+
+    /** verifier of the current thread, reused across calls */
+    private static final ThreadLocal<Verifier> VERIFIERS = ThreadLocal.withInitial(Verifier::new);
+
+    /** keys already translated into the provider's own representation, in access order */
+    private static final Map<PublicKey, PublicKey> PREPARED_KEYS = Collections.synchronizedMap(
+            new LinkedHashMap<PublicKey, PublicKey>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PublicKey, PublicKey> eldest) {
+                    return size() > KEY_CACHE_SIZE;
+                }
+            });
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +50,82 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        return verify(pubKey, message, signature) == Result.VALID;
+    }
+
+    /**
+     * Checks {@code signature} over {@code message} under {@code pubKey}, reusing the calling
+     * thread's {@link Signature} and skipping re-initialization when the key is unchanged.
+     *
+     * @return {@link Result#VALID} if the signature is valid, otherwise the reason it is not
+     */
+    public static Result verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null)
+            return Result.INVALID_KEY;
+        if (message == null || signature == null)
+            return Result.MALFORMED;
+        Verifier verifier = VERIFIERS.get();
+        if (verifier.sig == null)
+            return Result.UNAVAILABLE;
         try {
-            sig.initVerify(pubKey);
+            verifier.init(pubKey);
         } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            verifier.key = null;
+            return Result.INVALID_KEY;
         }
         try {
-            sig.update(message);
-            return sig.verify(signature);
+            verifier.sig.update(message);
+            return verifier.sig.verify(signature) ? Result.VALID : Result.INVALID;
         } catch (SignatureException e) {
-            e.printStackTrace();
+            // the engine may be left mid-operation, so initialize it again on the next call
+            verifier.key = null;
+            return Result.MALFORMED;
+        }
+    }
+
+    /** @return the provider's representation of {@code pubKey}, or {@code pubKey} if it has none */
+    private static PublicKey prepare(PublicKey pubKey, KeyFactory factory) throws InvalidKeyException {
+        PublicKey prepared = PREPARED_KEYS.get(pubKey);
+        if (prepared == null) {
+            prepared = factory == null ? pubKey : (PublicKey) factory.translateKey(pubKey);
+            PREPARED_KEYS.put(pubKey, prepared);
+        }
+        return prepared;
+    }
+
+    /** A thread's signature engine and the key it is currently initialized with */
+    private static final class Verifier {
+        final Signature sig;
+        final KeyFactory factory;
+        PublicKey key;
+
+        Verifier() {
+            sig = newInstance();
+            factory = newKeyFactory();
+        }
+
+        void init(PublicKey pubKey) throws InvalidKeyException {
+            if (pubKey != key) {
+                key = null;
+                sig.initVerify(prepare(pubKey, factory));
+                key = pubKey;
+            }
         }
-        return false;
 
+        private static Signature newInstance() {
+            try {
+                return Signature.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+
+        private static KeyFactory newKeyFactory() {
+            try {
+                return KeyFactory.getInstance("RSA");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
     }
 }
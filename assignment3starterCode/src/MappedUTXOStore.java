@@ -0,0 +1,542 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link UTXOStore} kept off the Java heap in memory-mapped files, so that the garbage collector
+ * never sees the UTXO set however large it grows. The index file holds an open-addressing table
+ * keyed by (transaction hash, output index); each 64-byte slot holds the key, the value and the
+ * offset of the address in an append-only address log next to it. The table doubles into a new
+ * file and replaces the old one when it gets too full.
+ *
+ * <p>
+ * The files are not a crash-safe record of the set: slots, the shifts of removals and the header
+ * are changed in place with no journal, so a crash can leave any mix of old and new pages. The
+ * header therefore records whether the store was closed: opening clears the mark and forces it
+ * to disk before anything is changed, and {@link #close()} sets it again once everything has been
+ * written through. A store that was closed reopens as it was, without rebuilding anything; one
+ * that was not is refused, and the set has to be rebuilt from the blocks instead.
+ *
+ * <p>
+ * An address is only logged once while it is among the recently used ones, so the log also holds
+ * addresses logged again and addresses no longer used. Whenever the table is rehashed, and also
+ * once the log has grown past twice its size after the last rehash plus the size of the table,
+ * the addresses still used are copied once each into a new log that replaces the old one. The
+ * log therefore stays within a constant factor of the live addresses, and the copying costs
+ * amortized constant time per address logged.
+ *
+ * <p>
+ * Only 32-byte transaction hashes can be stored. Lookups may run concurrently with each other but
+ * not with modifications. A copy of the store is an overlay on the heap over it, so the store
+ * can no longer be modified once it has been copied.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    private static final long MAGIC = 0x5554584f53455431L;
+    private static final int HEADER_BYTES = 4096;
+    private static final int MAGIC_AT = 0;
+    private static final int CAPACITY_AT = 8;
+    private static final int SIZE_AT = 16;
+    private static final int ADDRESS_END_AT = 24;
+    /** which address log the table points into, numbered from 0 */
+    private static final int ADDRESS_LOG_AT = 32;
+    /** where the address log ended right after it was last compacted */
+    private static final int ADDRESS_LIVE_AT = 40;
+    /** nonzero once the store has been closed, zero while it is open */
+    private static final int CLEAN_AT = 48;
+
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_BYTES = 64;
+    private static final int INDEX_AT = 32;
+    private static final int USED_AT = 36;
+    private static final int VALUE_AT = 40;
+    private static final int ADDRESS_AT = 48;
+
+    /** slots per mapped segment, keeping each mapping at 1 GiB */
+    private static final int SEGMENT_BITS = 24;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private static final long MIN_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    /** addresses whose log offset or decoded key are kept on the heap */
+    private static final int ADDRESS_CACHE_SIZE = 4096;
+
+    /** enclosing instance for the outputs handed out by {@link #getTxOutput} */
+    private static final Transaction OUTPUT_FACTORY = new Transaction();
+
+    private final Path path;
+    private FileChannel addressLog;
+    private Table table;
+    private final Map<PublicKey, Long> addressOffsets;
+    private final Map<Long, PublicKey> addresses;
+    /** set once the store has been copied, and so is shared with the copy */
+    private boolean frozen;
+
+    private MappedUTXOStore(Path path, Table table, FileChannel addressLog) {
+        this.path = path;
+        this.table = table;
+        this.addressLog = addressLog;
+        addressOffsets = lruMap();
+        addresses = lruMap();
+    }
+
+    /**
+     * Opens the store kept in {@code path} and its address log {@code path.addr}, creating both if
+     * they do not exist; once compacted, the log is {@code path.addr.1}, {@code path.addr.2} and
+     * on. Address log bytes past the recorded end are discarded, and so is an older log left
+     * behind.
+     *
+     * @throws IOException if the store was not closed, so its table may be torn
+     */
+    public static MappedUTXOStore open(Path path) throws IOException {
+        Table table;
+        if (Files.exists(path)) {
+            table = Table.open(path);
+            if (!table.clean()) {
+                table.close();
+                throw new IOException(path + " was not closed cleanly");
+            }
+            // a crash from now on must find the store unclean
+            table.setClean(false);
+            table.header.force();
+        } else {
+            table = Table.create(path, MIN_CAPACITY);
+        }
+        long log = table.addressLog();
+        FileChannel addressLog = FileChannel.open(addressPath(path, log), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (addressLog.size() > table.addressEnd())
+            addressLog.truncate(table.addressEnd());
+        if (log > 0)
+            Files.deleteIfExists(addressPath(path, log - 1));
+        return new MappedUTXOStore(path, table, addressLog);
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        checkWritable();
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES)
+            throw new IllegalArgumentException("transaction hash must be " + HASH_BYTES + " bytes");
+        long slot = table.find(txHash, utxo.getIndex());
+        if (slot < 0 && table.size() + 1 > table.capacity * MAX_LOAD) {
+            rehash(table.capacity * 2);
+            slot = table.find(txHash, utxo.getIndex());
+        } else if (table.addressEnd() > 2 * table.addressLive() + table.capacity * SLOT_BYTES) {
+            rehash(table.capacity);
+            slot = table.find(txHash, utxo.getIndex());
+        }
+        long address = appendAddress(txOut.address);
+        if (slot < 0) {
+            slot = -slot - 1;
+            table.setSize(table.size() + 1);
+        }
+        table.put(slot, txHash, utxo.getIndex(), txOut.value, address);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        checkWritable();
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES)
+            return;
+        long slot = table.find(txHash, utxo.getIndex());
+        if (slot >= 0)
+            table.remove(slot);
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_BYTES)
+            return null;
+        long slot = table.find(txHash, utxo.getIndex());
+        if (slot < 0)
+            return null;
+        return OUTPUT_FACTORY.new Output(table.value(slot), readAddress(table.address(slot)));
+    }
+
+    public boolean contains(UTXO utxo) {
+        byte[] txHash = utxo.getTxHash();
+        return txHash.length == HASH_BYTES && table.find(txHash, utxo.getIndex()) >= 0;
+    }
+
+    public int size() {
+        return (int) table.size();
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+        byte[] txHash = new byte[HASH_BYTES];
+        for (long slot = 0; slot < table.capacity; slot++) {
+            if (!table.used(slot))
+                continue;
+            table.hash(slot, txHash);
+            allUTXO.add(new UTXO(txHash, table.index(slot)));
+        }
+        return allUTXO;
+    }
+
+    /**
+     * @return an overlay on the heap over this store, which can no longer be modified since the
+     *         copy shares it
+     */
+    public UTXOStore copy() {
+        frozen = true;
+        return OverlayUTXOStore.over(this);
+    }
+
+    /**
+     * Writes all changes through to the files; the store still only reopens once it has been
+     * closed
+     */
+    public void sync() throws IOException {
+        addressLog.force(false);
+        table.force();
+    }
+
+    public void close() throws IOException {
+        sync();
+        table.setClean(true);
+        table.header.force();
+        addressLog.close();
+        table.close();
+    }
+
+    /**
+     * Rehashes into a table of {@code capacity} slots in a new file, copying the addresses it uses
+     * once each into a new address log, then puts both in place of the old ones. The new log is
+     * only used once the new table has been moved into place.
+     */
+    private void rehash(long capacity) {
+        try {
+            long log = table.addressLog() + 1;
+            Path next = path.resolveSibling(path.getFileName() + ".grow");
+            Path nextLog = addressPath(path, log);
+            Files.deleteIfExists(next);
+            Files.deleteIfExists(nextLog);
+            Table rebuilt = Table.create(next, capacity);
+            FileChannel compacted = FileChannel.open(nextLog, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the new offset of each address copied so far, by old offset and by encoding
+            HashMap<Long, Long> moved = new HashMap<Long, Long>();
+            HashMap<ByteBuffer, Long> copied = new HashMap<ByteBuffer, Long>();
+            long end = 0;
+            byte[] txHash = new byte[HASH_BYTES];
+            for (long slot = 0; slot < table.capacity; slot++) {
+                if (!table.used(slot))
+                    continue;
+                Long address = moved.get(table.address(slot));
+                if (address == null) {
+                    ByteBuffer record = readRecord(table.address(slot));
+                    address = copied.get(record);
+                    if (address == null) {
+                        address = end;
+                        while (record.hasRemaining())
+                            compacted.write(record, end + record.position());
+                        end += record.limit();
+                        record.rewind();
+                        copied.put(record, address);
+                    }
+                    moved.put(table.address(slot), address);
+                }
+                table.hash(slot, txHash);
+                int index = table.index(slot);
+                long to = -rebuilt.find(txHash, index) - 1;
+                rebuilt.put(to, txHash, index, table.value(slot), address);
+            }
+            rebuilt.setSize(table.size());
+            rebuilt.setAddressEnd(end);
+            rebuilt.setAddressLog(log);
+            rebuilt.setAddressLive(end);
+            compacted.force(false);
+            rebuilt.force();
+            table.close();
+            Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            table = rebuilt;
+            addressLog.close();
+            Files.delete(addressPath(path, log - 1));
+            addressLog = compacted;
+            addressOffsets.clear();
+            addresses.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return the log offset of {@code key}, appending it unless it was logged recently */
+    private long appendAddress(PublicKey key) {
+        Long offset = addressOffsets.get(key);
+        if (offset != null)
+            return offset.longValue();
+        try {
+            byte[] encoded = key.getEncoded();
+            long at = table.addressEnd();
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + encoded.length);
+            record.putInt(encoded.length).put(encoded).flip();
+            while (record.hasRemaining())
+                addressLog.write(record, at + record.position());
+            table.setAddressEnd(at + record.limit());
+            addressOffsets.put(key, at);
+            addresses.put(at, key);
+            return at;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private PublicKey readAddress(long offset) {
+        PublicKey key = addresses.get(offset);
+        if (key != null)
+            return key;
+        try {
+            ByteBuffer record = readRecord(offset);
+            byte[] encoded = new byte[record.limit() - Integer.BYTES];
+            record.position(Integer.BYTES);
+            record.get(encoded);
+            key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("corrupt address at " + offset, e);
+        }
+        addresses.put(offset, key);
+        return key;
+    }
+
+    /** @return the address log record at {@code offset}, its length included, ready to be read */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(length, offset);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + length.getInt(0));
+        readFully(record, offset);
+        record.flip();
+        return record;
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (addressLog.read(dst, position + dst.position()) < 0)
+                throw new IOException("address log truncated at " + position);
+        }
+    }
+
+    private static Path addressPath(Path path, long log) {
+        return path.resolveSibling(path.getFileName() + (log == 0 ? ".addr" : ".addr." + log));
+    }
+
+    private void checkWritable() {
+        if (frozen)
+            throw new IllegalStateException("store is shared with a copy and can no longer be modified");
+    }
+
+    private static <K, V> Map<K, V> lruMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > ADDRESS_CACHE_SIZE;
+            }
+        });
+    }
+
+    /** The mapped index file: a header followed by the slots, mapped in segments */
+    private static final class Table {
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] segments;
+        final long capacity;
+        final long mask;
+
+        private Table(FileChannel channel, long capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            mask = capacity - 1;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            long slotsPerSegment = Math.min(capacity, 1L << SEGMENT_BITS);
+            segments = new MappedByteBuffer[(int) (capacity / slotsPerSegment)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + i * slotsPerSegment * SLOT_BYTES, slotsPerSegment * SLOT_BYTES);
+            }
+        }
+
+        static Table create(Path path, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Table table = new Table(channel, capacity);
+            table.header.putLong(MAGIC_AT, MAGIC);
+            table.header.putLong(CAPACITY_AT, capacity);
+            table.setSize(0);
+            table.setAddressEnd(0);
+            return table;
+        }
+
+        static Table open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer head = ByteBuffer.allocate(CAPACITY_AT + Long.BYTES);
+            channel.read(head, 0);
+            if (head.getLong(MAGIC_AT) != MAGIC) {
+                channel.close();
+                throw new IOException(path + " is not a UTXO store");
+            }
+            return new Table(channel, head.getLong(CAPACITY_AT));
+        }
+
+        long size() {
+            return header.getLong(SIZE_AT);
+        }
+
+        void setSize(long size) {
+            header.putLong(SIZE_AT, size);
+        }
+
+        long addressEnd() {
+            return header.getLong(ADDRESS_END_AT);
+        }
+
+        void setAddressEnd(long end) {
+            header.putLong(ADDRESS_END_AT, end);
+        }
+
+        long addressLog() {
+            return header.getLong(ADDRESS_LOG_AT);
+        }
+
+        void setAddressLog(long log) {
+            header.putLong(ADDRESS_LOG_AT, log);
+        }
+
+        long addressLive() {
+            return header.getLong(ADDRESS_LIVE_AT);
+        }
+
+        void setAddressLive(long end) {
+            header.putLong(ADDRESS_LIVE_AT, end);
+        }
+
+        boolean clean() {
+            return header.getLong(CLEAN_AT) != 0;
+        }
+
+        void setClean(boolean clean) {
+            header.putLong(CLEAN_AT, clean ? 1 : 0);
+        }
+
+        /** @return the slot holding the outpoint, or {@code -slot - 1} for the free slot it would take */
+        long find(byte[] txHash, int index) {
+            long h0 = ByteBuffer.wrap(txHash).getLong(0);
+            long slot = home(h0, index);
+            while (used(slot)) {
+                ByteBuffer segment = segment(slot);
+                int at = offset(slot);
+                if (segment.getInt(at + INDEX_AT) == index && sameHash(segment, at, txHash))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        void put(long slot, byte[] txHash, int index, double value, long address) {
+            ByteBuffer segment = segment(slot);
+            int at = offset(slot);
+            for (int i = 0; i < HASH_BYTES; i++)
+                segment.put(at + i, txHash[i]);
+            segment.putInt(at + INDEX_AT, index);
+            segment.putDouble(at + VALUE_AT, value);
+            segment.putLong(at + ADDRESS_AT, address);
+            segment.putInt(at + USED_AT, 1);
+        }
+
+        /** Frees {@code slot}, shifting back the entries that probed past it */
+        void remove(long slot) {
+            setSize(size() - 1);
+            long hole = slot;
+            long next = (hole + 1) & mask;
+            while (used(next)) {
+                long home = home(segment(next).getLong(offset(next)), index(next));
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    ByteBuffer from = segment(next);
+                    ByteBuffer to = segment(hole);
+                    for (int i = 0; i < SLOT_BYTES; i += Long.BYTES)
+                        to.putLong(offset(hole) + i, from.getLong(offset(next) + i));
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            segment(hole).putInt(offset(hole) + USED_AT, 0);
+        }
+
+        boolean used(long slot) {
+            return segment(slot).getInt(offset(slot) + USED_AT) != 0;
+        }
+
+        int index(long slot) {
+            return segment(slot).getInt(offset(slot) + INDEX_AT);
+        }
+
+        double value(long slot) {
+            return segment(slot).getDouble(offset(slot) + VALUE_AT);
+        }
+
+        long address(long slot) {
+            return segment(slot).getLong(offset(slot) + ADDRESS_AT);
+        }
+
+        void hash(long slot, byte[] txHash) {
+            ByteBuffer segment = segment(slot);
+            int at = offset(slot);
+            for (int i = 0; i < HASH_BYTES; i++)
+                txHash[i] = segment.get(at + i);
+        }
+
+        void force() {
+            header.force();
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private long home(long h0, int index) {
+            long h = h0 ^ (index * 0x9E3779B97F4A7C15L);
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h & mask;
+        }
+
+        private boolean sameHash(ByteBuffer segment, int at, byte[] txHash) {
+            for (int i = 0; i < HASH_BYTES; i++) {
+                if (segment.get(at + i) != txHash[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private ByteBuffer segment(long slot) {
+            return segments[(int) (slot >>> SEGMENT_BITS)];
+        }
+
+        private int offset(long slot) {
+            return (int) ((slot & SEGMENT_MASK) * SLOT_BYTES);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Blocks that arrived before their parent, waiting for it, indexed by the hash of the missing
+ * parent. The pool is bounded both in number of blocks and in bytes; when a new block would exceed
+ * either bound the oldest blocks are evicted first, and blocks that have waited longer than the
+ * maximum age are dropped whenever the pool changes.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 100;
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+    public static final long DEFAULT_MAX_AGE_NANOS = 20 * 60 * 1000000000L;
+
+    private final int maxBlocks;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+
+    /** every waiting block by its own hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> byHash;
+    /** the waiting blocks by the hash of their missing parent */
+    private final HashMap<ByteArrayWrapper, ArrayList<Orphan>> byParent;
+    private long bytes;
+
+    public OrphanBlockPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_NANOS);
+    }
+
+    public OrphanBlockPool(int maxBlocks, long maxBytes, long maxAgeNanos) {
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+        byHash = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+        byParent = new HashMap<ByteArrayWrapper, ArrayList<Orphan>>();
+    }
+
+    /**
+     * Keeps {@code block} until its parent arrives, evicting older blocks to make room
+     *
+     * @return false if the block is already waiting or is too large to keep at all
+     */
+    public boolean add(Block block) {
+        long now = System.nanoTime();
+        expire(now);
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (byHash.containsKey(hash))
+            return false;
+        Orphan orphan = new Orphan(block, hash, now);
+        if (orphan.size > maxBytes || maxBlocks <= 0)
+            return false;
+        while (byHash.size() >= maxBlocks || bytes + orphan.size > maxBytes)
+            remove(byHash.values().iterator().next());
+
+        byHash.put(hash, orphan);
+        ArrayList<Orphan> siblings = byParent.get(orphan.parent);
+        if (siblings == null) {
+            siblings = new ArrayList<Orphan>(1);
+            byParent.put(orphan.parent, siblings);
+        }
+        siblings.add(orphan);
+        bytes += orphan.size;
+        return true;
+    }
+
+    /** @return the blocks waiting for the block with hash {@code parentHash}, removing them */
+    public ArrayList<Block> removeChildren(byte[] parentHash) {
+        ArrayList<Block> children = new ArrayList<Block>();
+        ArrayList<Orphan> waiting = byParent.remove(new ByteArrayWrapper(parentHash));
+        if (waiting == null)
+            return children;
+        for (Orphan orphan : waiting) {
+            byHash.remove(orphan.hash);
+            bytes -= orphan.size;
+            children.add(orphan.block);
+        }
+        expire(System.nanoTime());
+        return children;
+    }
+
+    public boolean contains(byte[] blockHash) {
+        return byHash.containsKey(new ByteArrayWrapper(blockHash));
+    }
+
+    /** @return the number of blocks waiting */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** @return the serialized size of the blocks waiting */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Drops the blocks that have waited longer than the maximum age, which are the oldest ones */
+    private void expire(long now) {
+        Iterator<Orphan> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Orphan oldest = it.next();
+            if (now - oldest.arrival <= maxAgeNanos)
+                return;
+            it.remove();
+            unlinkParent(oldest);
+            bytes -= oldest.size;
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        byHash.remove(orphan.hash);
+        unlinkParent(orphan);
+        bytes -= orphan.size;
+    }
+
+    private void unlinkParent(Orphan orphan) {
+        ArrayList<Orphan> siblings = byParent.get(orphan.parent);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byParent.remove(orphan.parent);
+    }
+
+    /** @return the serialized size of {@code block}, without building its raw form */
+    private static long sizeOf(Block block) {
+        long size = block.getPrevBlockHash() == null ? 0 : block.getPrevBlockHash().length;
+        for (Transaction tx : block.getTransactions())
+            size += tx.getRawTx().length;
+        return size;
+    }
+
+    private static final class Orphan {
+        final Block block;
+        final ByteArrayWrapper hash;
+        final ByteArrayWrapper parent;
+        final long size;
+        final long arrival;
+
+        Orphan(Block block, ByteArrayWrapper hash, long arrival) {
+            this.block = block;
+            this.hash = hash;
+            this.parent = new ByteArrayWrapper(block.getPrevBlockHash());
+            this.size = sizeOf(block);
+            this.arrival = arrival;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Transactions that arrived before a transaction whose outputs they spend, waiting for it, indexed
+ * by the outpoints they are missing, so that the children of a newly arrived transaction are found
+ * with one lookup per output. The pool is bounded both in number of transactions and in bytes;
+ * when a new transaction would exceed either bound the oldest ones are evicted first, and
+ * transactions that have waited longer than the maximum age are dropped whenever the pool changes.
+ */
+public class OrphanTransactionPool {
+
+    public static final int DEFAULT_MAX_TXS = 100;
+    public static final long DEFAULT_MAX_BYTES = 1L << 20;
+    public static final long DEFAULT_MAX_AGE_NANOS = 20 * 60 * 1000000000L;
+
+    private final int maxTxs;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+
+    /** every waiting transaction by its hash, oldest first */
+    private final LinkedHashMap<ByteArrayWrapper, Orphan> byHash;
+    /** the waiting transactions by each outpoint they are missing */
+    private final HashMap<UTXO, ArrayList<Orphan>> byMissing;
+    private long bytes;
+
+    public OrphanTransactionPool() {
+        this(DEFAULT_MAX_TXS, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_NANOS);
+    }
+
+    public OrphanTransactionPool(int maxTxs, long maxBytes, long maxAgeNanos) {
+        this.maxTxs = maxTxs;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+        byHash = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+        byMissing = new HashMap<UTXO, ArrayList<Orphan>>();
+    }
+
+    /**
+     * Keeps {@code tx} until the outputs it is {@code missing} appear, evicting older transactions
+     * to make room
+     *
+     * @return false if the transaction is already waiting or is too large to keep at all
+     */
+    public boolean add(Transaction tx, List<UTXO> missing) {
+        long now = System.nanoTime();
+        expire(now);
+        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+        if (byHash.containsKey(hash))
+            return false;
+        Orphan orphan = new Orphan(tx, hash, missing, now);
+        if (orphan.size > maxBytes || maxTxs <= 0)
+            return false;
+        while (byHash.size() >= maxTxs || bytes + orphan.size > maxBytes)
+            remove(byHash.values().iterator().next());
+
+        byHash.put(hash, orphan);
+        for (UTXO u : orphan.missing) {
+            ArrayList<Orphan> waiting = byMissing.get(u);
+            if (waiting == null) {
+                waiting = new ArrayList<Orphan>(1);
+                byMissing.put(u, waiting);
+            }
+            waiting.add(orphan);
+        }
+        bytes += orphan.size;
+        return true;
+    }
+
+    /**
+     * @return the transactions waiting for an output of {@code parent}, removing them; they may
+     *         still be missing other outputs
+     */
+    public ArrayList<Transaction> removeChildren(Transaction parent) {
+        ArrayList<Transaction> children = new ArrayList<Transaction>();
+        if (byMissing.isEmpty())
+            return children;
+        for (int i = 0; i < parent.numOutputs(); i++) {
+            ArrayList<Orphan> waiting = byMissing.get(new UTXO(parent.getHash(), i));
+            if (waiting == null)
+                continue;
+            for (Orphan orphan : new ArrayList<Orphan>(waiting)) {
+                remove(orphan);
+                children.add(orphan.tx);
+            }
+        }
+        expire(System.nanoTime());
+        return children;
+    }
+
+    public boolean contains(byte[] txHash) {
+        return byHash.containsKey(new ByteArrayWrapper(txHash));
+    }
+
+    /** @return the number of transactions waiting */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** @return the serialized size of the transactions waiting */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Drops the transactions that have waited longer than the maximum age, which are the oldest */
+    private void expire(long now) {
+        Iterator<Orphan> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Orphan oldest = it.next();
+            if (now - oldest.arrival <= maxAgeNanos)
+                return;
+            it.remove();
+            unlinkMissing(oldest);
+            bytes -= oldest.size;
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        byHash.remove(orphan.hash);
+        unlinkMissing(orphan);
+        bytes -= orphan.size;
+    }
+
+    private void unlinkMissing(Orphan orphan) {
+        for (UTXO u : orphan.missing) {
+            ArrayList<Orphan> waiting = byMissing.get(u);
+            waiting.remove(orphan);
+            if (waiting.isEmpty())
+                byMissing.remove(u);
+        }
+    }
+
+    private static final class Orphan {
+        final Transaction tx;
+        final ByteArrayWrapper hash;
+        final ArrayList<UTXO> missing;
+        final long size;
+        final long arrival;
+
+        Orphan(Transaction tx, ByteArrayWrapper hash, List<UTXO> missing, long arrival) {
+            this.tx = tx;
+            this.hash = hash;
+            this.missing = new ArrayList<UTXO>(new LinkedHashSet<UTXO>(missing));
+            this.size = tx.getRawTx().length;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link UTXOStore} recording changes on top of a base store that is never modified again, so
+ * that a {@link UTXOPool} can be copied in constant time: the copy and the original each get an
+ * overlay over the same base, and memory grows only with the changes each makes. Lookups go
+ * through at most {@link #MAX_DEPTH} overlays; deeper stacks are merged into one overlay over the
+ * bottom store, and an overlay whose changes outgrow its base is folded into a fresh flat copy.
+ */
+public class OverlayUTXOStore implements UTXOStore {
+
+    /** most overlays a lookup may go through before they are merged */
+    public static final int MAX_DEPTH = 8;
+
+    /** marks a UTXO removed from the base */
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
+    private final UTXOStore base;
+    private final int depth;
+    /** outputs added or replaced, and {@code REMOVED} for UTXOs removed from the base */
+    private final HashMap<UTXO, Transaction.Output> changes;
+    private int size;
+    private boolean frozen;
+
+    private OverlayUTXOStore(UTXOStore base, HashMap<UTXO, Transaction.Output> changes, int size) {
+        this.base = base;
+        this.depth = base instanceof OverlayUTXOStore ? ((OverlayUTXOStore) base).depth + 1 : 1;
+        this.changes = changes;
+        this.size = size;
+    }
+
+    /**
+     * @return a store starting out with the contents of {@code base}, which must not be modified
+     *         afterwards
+     */
+    public static UTXOStore over(UTXOStore base) {
+        if (base instanceof OverlayUTXOStore) {
+            OverlayUTXOStore overlay = (OverlayUTXOStore) base;
+            overlay.frozen = true;
+            if (overlay.depth >= MAX_DEPTH) {
+                base = overlay.merge();
+                if (base instanceof OverlayUTXOStore)
+                    ((OverlayUTXOStore) base).frozen = true;
+            }
+        }
+        return new OverlayUTXOStore(base, new HashMap<UTXO, Transaction.Output>(), base.size());
+    }
+
+    /** @return true if this overlay records no changes to its base */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /** @return the store this overlay records changes on top of */
+    public UTXOStore getBase() {
+        return base;
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        checkWritable();
+        if (!contains(utxo))
+            ++size;
+        changes.put(utxo, txOut);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        checkWritable();
+        if (!contains(utxo))
+            return;
+        --size;
+        if (base.contains(utxo))
+            changes.put(utxo, REMOVED);
+        else
+            changes.remove(utxo);
+    }
+
+    public Transaction.Output getTxOutput(UTXO utxo) {
+        Transaction.Output txOut = changes.get(utxo);
+        if (txOut == null)
+            return base.getTxOutput(utxo);
+        return txOut == REMOVED ? null : txOut;
+    }
+
+    public boolean contains(UTXO utxo) {
+        Transaction.Output txOut = changes.get(utxo);
+        if (txOut == null)
+            return base.contains(utxo);
+        return txOut != REMOVED;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        for (UTXO ut : base.getAllUTXO()) {
+            if (!changes.containsKey(ut))
+                allUTXO.add(ut);
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : changes.entrySet()) {
+            if (e.getValue() != REMOVED)
+                allUTXO.add(e.getKey());
+        }
+        return allUTXO;
+    }
+
+    /** @return an overlay over the same base holding a copy of this overlay's changes */
+    public UTXOStore copy() {
+        return new OverlayUTXOStore(base, new HashMap<UTXO, Transaction.Output>(changes), size);
+    }
+
+    /**
+     * @return a single overlay, or a flat store if the changes have outgrown the bottom store,
+     *         with the contents of this stack of overlays
+     */
+    private UTXOStore merge() {
+        ArrayList<OverlayUTXOStore> stack = new ArrayList<OverlayUTXOStore>();
+        UTXOStore bottom = this;
+        while (bottom instanceof OverlayUTXOStore) {
+            stack.add((OverlayUTXOStore) bottom);
+            bottom = ((OverlayUTXOStore) bottom).base;
+        }
+        HashMap<UTXO, Transaction.Output> merged = new HashMap<UTXO, Transaction.Output>();
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            for (Map.Entry<UTXO, Transaction.Output> e : stack.get(i).changes.entrySet()) {
+                if (e.getValue() == REMOVED && !bottom.contains(e.getKey()))
+                    merged.remove(e.getKey());
+                else
+                    merged.put(e.getKey(), e.getValue());
+            }
+        }
+        if (merged.size() <= bottom.size() / 2)
+            return new OverlayUTXOStore(bottom, merged, size);
+
+        UTXOStore flat = bottom.copy();
+        for (Map.Entry<UTXO, Transaction.Output> e : merged.entrySet()) {
+            if (e.getValue() == REMOVED)
+                flat.removeUTXO(e.getKey());
+            else
+                flat.addUTXO(e.getKey(), e.getValue());
+        }
+        return flat;
+    }
+
+    private void checkWritable() {
+        if (frozen)
+            throw new IllegalStateException("overlay is shared and can no longer be modified");
+    }
+}
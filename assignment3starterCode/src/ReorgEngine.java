@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Keeps the UTXO set of the active chain, the branch ending at the max height block, and moves it
+ * when the chain's tip changes. Extending the active chain applies one block. When a side branch
+ * overtakes it, the blocks of the old branch are disconnected back to the fork point using their
+ * undo data, the blocks of the new branch are connected, and the transactions of the disconnected
+ * blocks that the new branch does not include go back to the transaction pool, parents before
+ * children. Either way the work is proportional to the number of blocks switched. The
+ * transactions of every block connected leave the pool, as do those spending the same outputs,
+ * and orphan transactions waiting for its outputs are admitted to it.
+ */
+public class ReorgEngine {
+
+    private final TransactionPool txPool;
+    private BlockNode active;
+    /** the oldest retained block; forks are looked for at or above it */
+    private BlockNode root;
+    private UTXOPool pool;
+
+    private long reorgCount;
+    private long totalNanos;
+    private int maxDepth;
+    private Reorg lastReorg;
+
+    /**
+     * @param start the block the active chain ends at, also the oldest retained one
+     * @param pool the UTXO set after {@code start}
+     * @param txPool where the transactions of disconnected blocks go back to
+     */
+    public ReorgEngine(BlockNode start, UTXOPool pool, TransactionPool txPool) {
+        this.active = start;
+        this.root = start;
+        this.pool = pool;
+        this.txPool = txPool;
+    }
+
+    /** Records that {@code root} is now the oldest retained block */
+    void setRoot(BlockNode root) {
+        this.root = root;
+    }
+
+    /** @return the block the active chain ends at */
+    public BlockNode getActive() {
+        return active;
+    }
+
+    /**
+     * @return the UTXO set after {@code target}, derived from the active one by undoing the blocks
+     *         back to where the branches fork and applying those from there up to {@code target}
+     */
+    public UTXOPool getUTXOPool(BlockNode target) {
+        BlockNode fork = forkWith(target);
+        UTXOPool result = new UTXOPool(pool);
+        for (BlockNode from = active; from != fork; from = from.getParent())
+            from.getDelta().undo(result);
+        for (BlockNode to : branch(fork, target))
+            to.getDelta().apply(result);
+        return result;
+    }
+
+    /**
+     * Makes {@code target} the end of the active chain
+     *
+     * @return what the switch took if it was a reorganization, or null if {@code target} simply
+     *         extends the active chain
+     */
+    public Reorg activate(BlockNode target) {
+        if (target.getParent() == active) {
+            target.getDelta().apply(pool);
+            active = target;
+            confirm(target);
+            return null;
+        }
+
+        long start = System.nanoTime();
+        BlockNode fork = forkWith(target);
+        UTXOPool next = new UTXOPool(pool);
+        ArrayList<BlockNode> disconnected = new ArrayList<>();
+        for (BlockNode from = active; from != fork; from = from.getParent()) {
+            from.getDelta().undo(next);
+            disconnected.add(from);
+        }
+        ArrayList<BlockNode> connected = branch(fork, target);
+        HashSet<ByteArrayWrapper> confirmed = new HashSet<>();
+        for (BlockNode to : connected) {
+            to.getDelta().apply(next);
+            for (Transaction tx : BlockChain.blockTxs(to.getBlock()))
+                confirmed.add(new ByteArrayWrapper(tx.getHash()));
+        }
+        pool = next;
+        active = target;
+        for (BlockNode to : connected)
+            confirm(to);
+
+        // oldest block first, and within each block in spend order, so parents go back first
+        ArrayList<Transaction> displaced = new ArrayList<>();
+        for (int i = disconnected.size() - 1; i >= 0; i--) {
+            ArrayList<Transaction> txs = BlockChain.blockTxs(disconnected.get(i).getBlock());
+            Transaction[] blockTxs = txs.toArray(new Transaction[txs.size()]);
+            for (int t : SpendGraph.order(blockTxs)) {
+                if (!confirmed.contains(new ByteArrayWrapper(blockTxs[t].getHash())))
+                    displaced.add(blockTxs[t]);
+            }
+        }
+        for (Transaction tx : displaced)
+            txPool.admit(tx, pool);
+
+        Reorg reorg = new Reorg(fork.getHeight(), disconnected.size(), connected.size(),
+                displaced.size(), System.nanoTime() - start);
+        ++reorgCount;
+        totalNanos += reorg.nanos;
+        maxDepth = Math.max(maxDepth, reorg.disconnected);
+        lastReorg = reorg;
+        return reorg;
+    }
+
+    /**
+     * Removes the transactions of {@code node}, just connected, from the pool along with those
+     * conflicting with them, and admits the ones that were waiting for outputs it creates
+     */
+    private void confirm(BlockNode node) {
+        ArrayList<Transaction> txs = BlockChain.blockTxs(node.getBlock());
+        for (Transaction tx : txs) {
+            txPool.removeTransaction(tx.getHash());
+            txPool.removeConflicts(tx);
+        }
+        txPool.admitOrphansOf(node.getBlock().getCoinbase(), pool);
+        for (Transaction tx : txs)
+            txPool.admitOrphansOf(tx, pool);
+    }
+
+    /** @return the number of reorganizations so far */
+    public long getReorgCount() {
+        return reorgCount;
+    }
+
+    /** @return the time spent in all reorganizations so far, in nanoseconds */
+    public long getTotalReorgNanos() {
+        return totalNanos;
+    }
+
+    /** @return the most blocks disconnected by a single reorganization so far */
+    public int getMaxReorgDepth() {
+        return maxDepth;
+    }
+
+    /** @return the latest reorganization, or null if there has been none */
+    public Reorg getLastReorg() {
+        return lastReorg;
+    }
+
+    /**
+     * @return the last block on both the active chain and the branch of {@code target}, at or
+     *         above the root. Checked before anything is changed, since walking back from a missing
+     *         fork would undo every block down through the root.
+     */
+    private BlockNode forkWith(BlockNode target) {
+        BlockNode fork = BlockNode.findFork(active, target, root.getHeight());
+        if (fork == null)
+            throw new IllegalArgumentException("block at height " + target.getHeight() + " is not retained");
+        return fork;
+    }
+
+    /** @return the blocks after {@code fork} up to {@code target}, oldest first */
+    private static ArrayList<BlockNode> branch(BlockNode fork, BlockNode target) {
+        ArrayList<BlockNode> blocks = new ArrayList<>();
+        for (BlockNode to = target; to != fork; to = to.getParent())
+            blocks.add(to);
+        Collections.reverse(blocks);
+        return blocks;
+    }
+
+    /** What one reorganization did and how long it took */
+    public static final class Reorg {
+        /** height of the last block both branches share */
+        public final int forkHeight;
+        /** blocks of the old branch disconnected */
+        public final int disconnected;
+        /** blocks of the new branch connected */
+        public final int connected;
+        /** transactions returned to the pool */
+        public final int readmitted;
+        public final long nanos;
+
+        Reorg(int forkHeight, int disconnected, int connected, int readmitted, long nanos) {
+            this.forkHeight = forkHeight;
+            this.disconnected = disconnected;
+            this.connected = connected;
+            this.readmitted = readmitted;
+            this.nanos = nanos;
+        }
+
+        public String toString() {
+            return "reorg at height " + forkHeight + ": -" + disconnected + " +" + connected
+                    + " blocks, " + readmitted + " txs readmitted in " + nanos / 1000 + " us";
+        }
+    }
+}
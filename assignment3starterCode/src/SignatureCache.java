@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe record of input signatures that have been found valid, so that a
+ * transaction checked on its way into the {@link TransactionPool} is not checked again when a
+ * block containing it is assembled or connected. Only successful checks are remembered; when the
+ * cache is full the oldest entries are evicted first.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(SignatureCache::newDigest);
+
+    private final int capacity;
+    private final ConcurrentHashMap<ByteArrayWrapper, Boolean> verified;
+    /** keys of {@code verified} in insertion order, for eviction */
+    private final ConcurrentLinkedQueue<ByteArrayWrapper> order;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache remembering at most {@code capacity} verified signatures */
+    public SignatureCache(int capacity) {
+        this.capacity = capacity;
+        verified = new ConcurrentHashMap<>();
+        order = new ConcurrentLinkedQueue<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * @return true if the signature of input {@code index} of {@code tx} is valid for the output
+     *         {@code claimed} it spends. The check is skipped when the same (transaction id, input
+     *         index, data to sign, address) has been verified before. Transactions that have been
+     *         modified since they were finalized are always checked and never cached.
+     */
+    public boolean verify(Transaction tx, int index, Transaction.Output claimed) {
+        byte[] message = tx.getRawDataToSign(index);
+        byte[] signature = tx.getInput(index).signature;
+        if (!tx.isFrozen() || tx.getHash() == null)
+            return Crypto.verifySignature(claimed.address, message, signature);
+
+        ByteArrayWrapper key = key(tx.getHash(), index, message, claimed);
+        if (verified.containsKey(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        if (!Crypto.verifySignature(claimed.address, message, signature))
+            return false;
+        if (verified.putIfAbsent(key, Boolean.TRUE) == null) {
+            order.add(key);
+            while (verified.size() > capacity) {
+                ByteArrayWrapper eldest = order.poll();
+                if (eldest == null)
+                    break;
+                verified.remove(eldest);
+            }
+        }
+        return true;
+    }
+
+    /** @return the number of checks answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of checks that had to verify the signature */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of signatures currently remembered */
+    public int size() {
+        return verified.size();
+    }
+
+    private static ByteArrayWrapper key(byte[] txHash, int index, byte[] message, Transaction.Output claimed) {
+        MessageDigest md = DIGEST.get();
+        md.update(txHash);
+        md.update(ByteBuffer.allocate(Integer.SIZE / 8).putInt(index).array());
+        md.update(message);
+        md.update(claimed.getAddressBytes());
+        return new ByteArrayWrapper(md.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+}
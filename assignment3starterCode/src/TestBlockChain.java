@@ -1,7 +1,13 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 
@@ -11,6 +17,7 @@ public class TestBlockChain extends TestCase {
 
 	private static final int MAIN_HEIGHT = 6;
 	private static final int SIDE_HEIGHT = 10;
+	private Wallet mainWallet;
 	private PublicKey mainKey;
 	private Block genesisBlock;
 	private BlockChain chain;
@@ -140,6 +147,204 @@ public class TestBlockChain extends TestCase {
 		}
 	}
 
+	public void testOrphanBlocks() {
+		// build a branch on another chain, then deliver it newest first
+		BlockChain other = new BlockChain(genesisBlock);
+		Block branch[] = new Block[4];
+		branch[0] = genesisBlock;
+		for (int i = 1; i < branch.length; ++i) {
+			branch[i] = new Block(branch[i - 1].getHash(), mainKey);
+			branch[i].addTransaction(branch[i].getCoinbase());
+			branch[i].finalize();
+			assertTrue(other.addBlock(branch[i]));
+		}
+		for (int i = branch.length - 1; i > 1; --i) {
+			assertFalse(chain.addBlock(branch[i]));
+			assertFalse(chain.contains(branch[i]));
+		}
+		assertTrue(chain.addBlock(branch[1]));
+		for (int i = 1; i < branch.length; ++i) {
+			assertTrue(chain.contains(branch[i]));
+		}
+		assertEquals(branch[branch.length - 1], chain.getMaxHeightBlock());
+		assertEquals(0, chain.getOrphanBlockPool().size());
+	}
+
+	public void testFindForkAbovePrunedRoot() throws NoSuchAlgorithmException {
+		// side branches from every depth below the tip, long after the first blocks were pruned
+		Block mainChain[] = new Block[BlockChain.CUT_OFF_AGE * 3];
+		mainChain[0] = genesisBlock;
+		for (int i = 1; i < mainChain.length; ++i) {
+			mainChain[i] = makeBlock(mainChain[i - 1], mainKey);
+		}
+		PublicKey sideKey = makePublicKey();
+		for (int depth = 1; depth < BlockChain.CUT_OFF_AGE - 1; ++depth) {
+			Block forkBlock = mainChain[mainChain.length - 1 - depth];
+			Block side = makeBlock(forkBlock, sideKey);
+			assertSame("depth " + depth, forkBlock, chain.findFork(Arrays.asList(side.getHash())));
+		}
+		assertSame(mainChain[mainChain.length - 1], chain.findFork(chain.getBlockLocator()));
+	}
+
+	public void testDeepReorg() throws NoSuchAlgorithmException {
+		// branches overtaking the active chain from more than half the cut-off age below its tip
+		checkReorg(18, 5);
+		checkReorg(BlockChain.CUT_OFF_AGE * 3, BlockChain.CUT_OFF_AGE - 2);
+	}
+
+	/**
+	 * Builds a chain of {@code length} blocks, one of them with a transaction, then a side branch
+	 * from {@code depth} blocks below its tip that ends one block higher
+	 */
+	private void checkReorg(int length, int depth) throws NoSuchAlgorithmException {
+		chain = new BlockChain(genesisBlock);
+		Block mainChain[] = new Block[length];
+		mainChain[0] = genesisBlock;
+		Transaction tx = mainWallet.spend(genesisBlock.getCoinbase(), 0, 24);
+		for (int i = 1; i < mainChain.length; ++i) {
+			if (i == length - 1) {
+				mainChain[i] = new Block(mainChain[i - 1].getHash(), mainKey);
+				mainChain[i].addTransaction(tx);
+				mainChain[i].finalize();
+				assertTrue(chain.addBlock(mainChain[i]));
+			} else {
+				mainChain[i] = makeBlock(mainChain[i - 1], mainKey);
+			}
+		}
+		Block side = mainChain[length - 1 - depth];
+		PublicKey sideKey = makePublicKey();
+		for (int i = 0; i <= depth; ++i) {
+			side = makeBlock(side, sideKey);
+		}
+		assertSame(side, chain.getMaxHeightBlock());
+		ReorgEngine.Reorg reorg = chain.getReorgEngine().getLastReorg();
+		assertEquals(length - depth, reorg.forkHeight);
+		assertEquals(depth, reorg.disconnected);
+		assertEquals(depth + 1, reorg.connected);
+		// the transaction of the disconnected tip is back in the pool
+		assertNotNull(chain.getTransactionPool().getTransaction(tx.getHash()));
+	}
+
+	public void testCloseLeavesOtherChains() throws NoSuchAlgorithmException {
+		BlockChain other = new BlockChain(genesisBlock);
+		other.close();
+		// a dead branch for the maintenance thread to prune once the root moves past it
+		Block mainChain[] = new Block[BlockChain.CUT_OFF_AGE * 2];
+		mainChain[0] = genesisBlock;
+		mainChain[1] = makeBlock(genesisBlock, mainKey);
+		makeBlock(genesisBlock, makePublicKey());
+		for (int i = 2; i < mainChain.length; ++i) {
+			mainChain[i] = makeBlock(mainChain[i - 1], mainKey);
+		}
+		assertSame(mainChain[mainChain.length - 1], chain.getMaxHeightBlock());
+	}
+
+	public void testBlockStore() throws IOException {
+		// blocks the chain has let go of are still served from the store, also once reopened
+		Path dir = Files.createTempDirectory("blocks");
+		BlockStore store = BlockStore.open(dir);
+		chain = new BlockChain(genesisBlock, store);
+		Block mainChain[] = new Block[BlockChain.CUT_OFF_AGE * 2];
+		mainChain[0] = genesisBlock;
+		for (int i = 1; i < mainChain.length; ++i) {
+			mainChain[i] = makeBlock(mainChain[i - 1], mainKey);
+		}
+		assertFalse(chain.contains(mainChain[0]));
+		assertEquals(mainChain.length, store.size());
+		for (int i = 0; i < mainChain.length; ++i) {
+			assertTrue(Arrays.equals(mainChain[i].getHash(), chain.getBlock(mainChain[i].getHash()).getHash()));
+		}
+		store.close();
+		store = BlockStore.open(dir);
+		for (int i = 0; i < mainChain.length; ++i) {
+			Block stored = store.get(mainChain[i].getHash());
+			assertTrue(Arrays.equals(mainChain[i].getPrevBlockHash(), stored.getPrevBlockHash()));
+			assertEquals(mainChain[i].getCoinbase(), stored.getCoinbase());
+		}
+		store.close();
+	}
+
+	public void testBlockStoreLostTail() throws IOException {
+		// the blocks appended after the last sync never reach the segment, though the index did
+		Path dir = Files.createTempDirectory("blocks");
+		BlockStore store = BlockStore.open(dir);
+		Block blocks[] = new Block[BlockStore.SYNC_BLOCKS + 6];
+		long durable = 0;
+		for (int i = 0; i < blocks.length; ++i) {
+			blocks[i] = new Block(i == 0 ? genesisBlock.getHash() : blocks[i - 1].getHash(), mainKey);
+			blocks[i].finalize();
+			assertTrue(store.put(blocks[i]));
+			if (i == BlockStore.SYNC_BLOCKS - 1) {
+				durable = Files.size(dir.resolve("blk00000.dat"));
+			}
+		}
+		try (FileChannel segment = FileChannel.open(dir.resolve("blk00000.dat"), StandardOpenOption.WRITE)) {
+			segment.truncate(durable);
+		}
+		BlockStore reopened = BlockStore.open(dir);
+		assertEquals(BlockStore.SYNC_BLOCKS, reopened.size());
+		for (int i = 0; i < blocks.length; ++i) {
+			boolean kept = i < BlockStore.SYNC_BLOCKS;
+			assertEquals("block " + i + " kept:", kept, reopened.contains(blocks[i].getHash()));
+			assertEquals(kept, reopened.get(blocks[i].getHash()) != null);
+		}
+		assertTrue(reopened.put(blocks[BlockStore.SYNC_BLOCKS]));
+		assertTrue(Arrays.equals(blocks[BlockStore.SYNC_BLOCKS - 1].getHash(),
+				reopened.get(blocks[BlockStore.SYNC_BLOCKS].getHash()).getPrevBlockHash()));
+		reopened.close();
+	}
+
+	public void testTemplateRebuild() {
+		BlockTemplate template = chain.getBlockTemplate();
+		assertEquals(0, chain.getTemplateTransactions().size());
+		long rebuilds = template.getRebuildCount();
+
+		// a new transaction is appended to the template without rebuilding it
+		Transaction tx = mainWallet.spend(genesisBlock.getCoinbase(), 0, 24);
+		chain.addTransaction(tx);
+		assertEquals(1, chain.getTemplateTransactions().size());
+		assertEquals(rebuilds, template.getRebuildCount());
+
+		// a new tip drops the template, which is rebuilt once on demand
+		Block empty = makeBlock(genesisBlock, mainKey);
+		assertEquals(rebuilds, template.getRebuildCount());
+		assertEquals(1, chain.getTemplateTransactions().size());
+		assertEquals(1, chain.getTemplateTransactions().size());
+		assertEquals(rebuilds + 1, template.getRebuildCount());
+
+		// mining the transaction leaves nothing to mine
+		Block withTx = new Block(empty.getHash(), mainKey);
+		withTx.addTransaction(tx);
+		withTx.finalize();
+		assertTrue(chain.addBlock(withTx));
+		assertEquals(0, chain.getTemplateTransactions().size());
+		assertEquals(rebuilds + 2, template.getRebuildCount());
+	}
+
+	public void testReorgLinksPooledChildren() throws NoSuchAlgorithmException {
+		// the parent of a pooled transaction is mined, then put back in the pool by a reorg
+		Transaction parent = mainWallet.spend(genesisBlock.getCoinbase(), 0, 24);
+		Block withParent = new Block(genesisBlock.getHash(), mainKey);
+		withParent.addTransaction(parent);
+		withParent.finalize();
+		assertTrue(chain.addBlock(withParent));
+		Transaction child = mainWallet.spend(parent, 0, 23);
+		chain.addTransaction(child);
+		TransactionPool txPool = chain.getTransactionPool();
+		assertEquals(1, txPool.getAncestorCount(child.getHash()));
+
+		Block side = makeBlock(genesisBlock, makePublicKey());
+		makeBlock(side, mainKey);
+		assertEquals(2, txPool.size());
+		assertEquals(2, txPool.getAncestorCount(child.getHash()));
+		assertEquals(2, txPool.getDescendantCount(parent.getHash()));
+		assertEquals(2.0, txPool.getDescendantFee(parent.getHash()));
+
+		// a conflict of the parent takes the child along
+		txPool.removeConflicts(mainWallet.spend(genesisBlock.getCoinbase(), 0, 20));
+		assertEquals(0, txPool.size());
+	}
+
 	private Block makeBlock(Block prevBlock, PublicKey theKey) {
 		assertTrue(chain.contains(prevBlock));
 		Block newBlock = new Block(prevBlock.getHash(), theKey);
@@ -151,12 +356,18 @@ public class TestBlockChain extends TestCase {
 
 	@Override
 	public void setUp() throws NoSuchAlgorithmException {
-		mainKey = makePublicKey();
+		mainWallet = new Wallet();
+		mainKey = mainWallet.getPublicKey();
 		genesisBlock = new Block(null, mainKey);
 		genesisBlock.finalize();
 		chain = new BlockChain(genesisBlock);
 	}
 
+	@Override
+	public void tearDown() {
+		chain.close();
+	}
+
 	private PublicKey makePublicKey() throws NoSuchAlgorithmException {
 		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
 		KeyPair keyPair = kpg.generateKeyPair();
@@ -0,0 +1,59 @@
+import junit.framework.TestCase;
+
+public class TestSignatureCache extends TestCase {
+
+	private Wallet wallet;
+	/** a coinbase paying the wallet, whose output every test transaction spends */
+	private Transaction coinbase;
+	private Transaction.Output coin;
+
+	public void testEvictsOldestFirst() {
+		SignatureCache cache = new SignatureCache(2);
+		Transaction a = wallet.spend(coinbase, 0, 1);
+		Transaction b = wallet.spend(coinbase, 0, 2);
+		Transaction c = wallet.spend(coinbase, 0, 3);
+		assertTrue(cache.verify(a, 0, coin));
+		assertTrue(cache.verify(b, 0, coin));
+		assertTrue(cache.verify(a, 0, coin));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// c pushes out a, the eldest even though it was the last one looked up
+		assertTrue(cache.verify(c, 0, coin));
+		assertEquals(2, cache.size());
+		assertTrue(cache.verify(b, 0, coin));
+		assertTrue(cache.verify(c, 0, coin));
+		assertEquals(3, cache.getHits());
+		assertTrue(cache.verify(a, 0, coin));
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.size());
+	}
+
+	public void testRemembersOnlyValidFrozen() {
+		SignatureCache cache = new SignatureCache();
+		// a signature checked against an output paying someone else
+		Transaction.Output other = coinbase.new Output(coin.value, new Wallet().getPublicKey());
+		Transaction tx = wallet.spend(coinbase, 0, 1);
+		assertFalse(cache.verify(tx, 0, other));
+		assertFalse(cache.verify(tx, 0, other));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMisses());
+
+		// a transaction changed since it was finalized is checked as it is now, and not kept
+		tx.addOutput(1, wallet.getPublicKey());
+		assertFalse(cache.verify(tx, 0, coin));
+		assertEquals(0, cache.size());
+		wallet.sign(tx);
+		assertTrue(cache.verify(tx, 0, coin));
+		assertTrue(cache.verify(tx, 0, coin));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getHits());
+	}
+
+	@Override
+	public void setUp() {
+		wallet = new Wallet();
+		coinbase = new Transaction(25, wallet.getPublicKey());
+		coin = coinbase.getOutput(0);
+	}
+}
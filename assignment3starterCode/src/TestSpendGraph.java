@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TestSpendGraph extends TestCase {
+
+	private Wallet wallet;
+	/** a transaction paying two outputs of 10 to the wallet, both unspent */
+	private Transaction funding;
+	private UTXOPool pool;
+
+	public void testParentsFirst() {
+		Transaction parent = wallet.spend(funding, 0, 9);
+		Transaction child = wallet.spend(parent, 0, 8);
+		Transaction grandchild = wallet.spend(child, 0, 7);
+		Transaction unrelated = wallet.spend(funding, 1, 9);
+		Transaction[] txs = { grandchild, unrelated, child, parent };
+		// the unrelated transaction keeps its place, the chain follows its root
+		assertTrue(Arrays.equals(new int[] { 1, 3, 2, 0 }, SpendGraph.order(txs)));
+	}
+
+	public void testChainInOneEpoch() {
+		Transaction parent = wallet.spend(funding, 0, 9);
+		Transaction child = wallet.spend(parent, 0, 8);
+		Transaction grandchild = wallet.spend(child, 0, 7);
+		Transaction[] accepted = new TxHandler(pool).handleTxs(new Transaction[] { grandchild, child, parent });
+		assertEquals(3, accepted.length);
+		assertSame(parent, accepted[0]);
+		assertSame(child, accepted[1]);
+		assertSame(grandchild, accepted[2]);
+	}
+
+	public void testConflictsInProposalOrder() {
+		// b is proposed first, so it wins the coin a's whole chain depends on
+		Transaction a = wallet.spend(funding, 0, 9);
+		Transaction aChild = wallet.spend(a, 0, 8);
+		Transaction b = wallet.spend(funding, 0, 5);
+		Transaction[] accepted = new TxHandler(pool).handleTxs(new Transaction[] { aChild, b, a });
+		assertEquals(1, accepted.length);
+		assertSame(b, accepted[0]);
+	}
+
+	@Override
+	public void setUp() {
+		wallet = new Wallet();
+		funding = new Transaction();
+		funding.addOutput(10, wallet.getPublicKey());
+		funding.addOutput(10, wallet.getPublicKey());
+		funding.finalize();
+		pool = new UTXOPool();
+		for (int i = 0; i < funding.numOutputs(); ++i) {
+			pool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TestTransaction extends TestCase {
+
+	private PublicKey[] keys;
+	private byte[] prevHash;
+
+	public void testRawDataToSign() throws IOException {
+		Transaction tx = makeTransaction();
+		for (int i = 0; i < tx.numInputs(); ++i) {
+			assertTrue("input " + i, Arrays.equals(referenceDataToSign(tx, i), tx.getRawDataToSign(i)));
+		}
+	}
+
+	public void testRawTx() throws IOException {
+		Transaction tx = makeTransaction();
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		// signatures of different lengths, one input left unsigned
+		tx.addSignature(new byte[] { 1, 2, 3 }, 0);
+		tx.addSignature(new byte[256], 2);
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		assertEquals(0, new Transaction().getRawTx().length);
+	}
+
+	public void testOutputAddedAfterSigning() throws IOException {
+		// the outputs section serialized for the first input must not outlive a new output
+		Transaction tx = makeTransaction();
+		tx.getRawDataToSign(0);
+		tx.addOutput(3, keys[0]);
+		for (int i = 0; i < tx.numInputs(); ++i) {
+			assertTrue("input " + i, Arrays.equals(referenceDataToSign(tx, i), tx.getRawDataToSign(i)));
+		}
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		tx.removeInput(0);
+		assertTrue(Arrays.equals(referenceDataToSign(tx, 0), tx.getRawDataToSign(0)));
+	}
+
+	public void testHash() throws IOException, NoSuchAlgorithmException {
+		Transaction tx = makeTransaction();
+		tx.addSignature(new byte[] { 4, 5 }, 1);
+		tx.finalize();
+		byte[] expected = MessageDigest.getInstance("SHA-256").digest(referenceRawTx(tx));
+		assertTrue(Arrays.equals(expected, tx.getHash()));
+	}
+
+	public void testFrozenUntilModified() throws IOException, NoSuchAlgorithmException {
+		Transaction tx = makeTransaction();
+		assertFalse(tx.isFrozen());
+		tx.finalize();
+		assertTrue(tx.isFrozen());
+		byte[] hash = tx.getHash();
+		// the memoized form is handed out as a copy
+		tx.getRawTx()[0] ^= 1;
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		try {
+			tx.setHash(new byte[32]);
+			fail("a finalized transaction took a new hash");
+		} catch (IllegalStateException expected) {
+		}
+
+		tx.addSignature(new byte[] { 9 }, 0);
+		assertFalse(tx.isFrozen());
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		tx.finalize();
+		assertFalse(Arrays.equals(hash, tx.getHash()));
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(referenceRawTx(tx)), tx.getHash()));
+	}
+
+	public void testEqualById() {
+		Transaction tx = makeTransaction();
+		Transaction same = makeTransaction();
+		assertEquals(tx, same);
+		assertEquals(tx.hashCode(), same.hashCode());
+		tx.finalize();
+		assertEquals(tx, same);
+		assertEquals(tx.hashCode(), same.hashCode());
+		same.addSignature(new byte[] { 1 }, 1);
+		assertFalse(tx.equals(same));
+		same.addSignature(null, 1);
+		assertEquals(tx, same);
+	}
+
+	public void testFinalizeAfterInPlaceChange() throws IOException, NoSuchAlgorithmException {
+		Transaction tx = makeTransaction();
+		tx.finalize();
+		byte[] hash = tx.getHash();
+		// signing and changing a value through the inputs and outputs themselves
+		tx.getInput(0).addSignature(new byte[] { 7, 7, 7 });
+		tx.getOutput(1).value = 0.5;
+		tx.finalize();
+		assertFalse(Arrays.equals(hash, tx.getHash()));
+		assertTrue(Arrays.equals(referenceRawTx(tx), tx.getRawTx()));
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(referenceRawTx(tx)), tx.getHash()));
+		for (int i = 0; i < tx.numInputs(); ++i) {
+			assertTrue("input " + i, Arrays.equals(referenceDataToSign(tx, i), tx.getRawDataToSign(i)));
+		}
+	}
+
+	/** @return an unsigned transaction with three inputs, one of them without a previous hash, and two outputs */
+	private Transaction makeTransaction() {
+		Transaction tx = new Transaction();
+		tx.addInput(prevHash, 0);
+		tx.addInput(prevHash, 7);
+		tx.addInput(null, -1);
+		tx.addOutput(12.5, keys[0]);
+		tx.addOutput(0.25, keys[1]);
+		return tx;
+	}
+
+	/** @return the data to sign of input {@code index}, laid out as the starter code serialized it */
+	private static byte[] referenceDataToSign(Transaction tx, int index) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeInput(out, tx.getInput(index), false);
+		writeOutputs(out, tx);
+		return bytes.toByteArray();
+	}
+
+	/** @return the transaction with its signatures, laid out as the starter code serialized it */
+	private static byte[] referenceRawTx(Transaction tx) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (Transaction.Input in : tx.getInputs()) {
+			writeInput(out, in, true);
+		}
+		writeOutputs(out, tx);
+		return bytes.toByteArray();
+	}
+
+	private static void writeInput(DataOutputStream out, Transaction.Input in, boolean withSignature)
+			throws IOException {
+		if (in.prevTxHash != null) {
+			out.write(in.prevTxHash);
+		}
+		out.writeInt(in.outputIndex);
+		if (withSignature && in.signature != null) {
+			out.write(in.signature);
+		}
+	}
+
+	private static void writeOutputs(DataOutputStream out, Transaction tx) throws IOException {
+		for (Transaction.Output op : tx.getOutputs()) {
+			out.writeDouble(op.value);
+			out.write(((RSAPublicKey) op.address).getPublicExponent().toByteArray());
+			out.write(((RSAPublicKey) op.address).getModulus().toByteArray());
+		}
+	}
+
+	@Override
+	public void setUp() throws NoSuchAlgorithmException {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		keys = new PublicKey[] { kpg.generateKeyPair().getPublic(), kpg.generateKeyPair().getPublic() };
+		prevHash = new byte[32];
+		Arrays.fill(prevHash, (byte) 0x5a);
+	}
+}
@@ -0,0 +1,161 @@
+import junit.framework.TestCase;
+
+public class TestTransactionPool extends TestCase {
+
+	private static final int COINS = 10;
+	private Wallet wallet;
+	/** a transaction paying {@code COINS} outputs of 10 to the wallet, all unspent */
+	private Transaction funding;
+	private UTXOPool utxoPool;
+	private TransactionPool txPool;
+
+	public void testAdmission() {
+		Transaction tx = wallet.spend(funding, 0, 9);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(tx, utxoPool));
+		assertEquals(TransactionPool.Admission.DUPLICATE, txPool.admit(tx, utxoPool));
+		assertEquals(1, txPool.size());
+		assertEquals(1.0, txPool.getAncestorFee(tx.getHash()));
+
+		// paying out more than it spends
+		assertEquals(TransactionPool.Admission.INVALID, txPool.admit(wallet.spend(funding, 1, 11), utxoPool));
+		// signed by a key other than the one the output pays
+		Transaction forged = new Transaction();
+		forged.addInput(funding.getHash(), 1);
+		forged.addOutput(9, wallet.getPublicKey());
+		new Wallet().sign(forged);
+		assertEquals(TransactionPool.Admission.INVALID, txPool.admit(forged, utxoPool));
+		// never finalized, so without a hash
+		Transaction unhashed = new Transaction();
+		unhashed.addInput(funding.getHash(), 1);
+		unhashed.addOutput(9, wallet.getPublicKey());
+		assertEquals(TransactionPool.Admission.INVALID, txPool.admit(unhashed, utxoPool));
+		assertEquals(1, txPool.size());
+		assertEquals(0, txPool.getOrphans().size());
+	}
+
+	public void testOrphanPromotion() {
+		// a chain delivered child first
+		Transaction parent = wallet.spend(funding, 0, 9);
+		Transaction child = wallet.spend(parent, 0, 8);
+		Transaction grandchild = wallet.spend(child, 0, 7);
+		assertEquals(TransactionPool.Admission.ORPHAN, txPool.admit(grandchild, utxoPool));
+		assertEquals(TransactionPool.Admission.ORPHAN, txPool.admit(child, utxoPool));
+		assertEquals(0, txPool.size());
+		assertEquals(2, txPool.getOrphans().size());
+
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(parent, utxoPool));
+		assertEquals(3, txPool.size());
+		assertEquals(0, txPool.getOrphans().size());
+		assertEquals(3, txPool.getAncestorCount(grandchild.getHash()));
+		assertEquals(3, txPool.getDescendantCount(parent.getHash()));
+	}
+
+	public void testPoolFull() {
+		// transactions of the same size, paying fees of 1, 2, 0.5 and 3
+		Transaction low = wallet.spend(funding, 0, 9);
+		Transaction mid = wallet.spend(funding, 1, 8);
+		Transaction lowest = wallet.spend(funding, 2, 9.5);
+		Transaction high = wallet.spend(funding, 3, 7);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(low, utxoPool));
+		long entryBytes = txPool.getBytes();
+		// room for two of them
+		txPool = new TransactionPool(null, 2 * entryBytes + entryBytes / 2);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(low, utxoPool));
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(mid, utxoPool));
+
+		assertEquals(TransactionPool.Admission.POOL_FULL, txPool.admit(lowest, utxoPool));
+		assertEquals(2, txPool.size());
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(high, utxoPool));
+		assertEquals(2, txPool.size());
+		assertNull(txPool.getTransaction(low.getHash()));
+		assertNotNull(txPool.getTransaction(mid.getHash()));
+		assertNotNull(txPool.getTransaction(high.getHash()));
+	}
+
+	public void testReplaceByFee() {
+		// a pays a fee of 1 and its child another 1
+		Transaction a = wallet.spend(funding, 0, 9);
+		Transaction child = wallet.spend(a, 0, 8);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(a, utxoPool));
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(child, utxoPool));
+
+		// no higher fee rate than a
+		assertEquals(TransactionPool.Admission.CONFLICT, txPool.admit(wallet.spend(funding, 0, 9.5), utxoPool));
+		// a higher rate than a, but less fee than a and its child together
+		assertEquals(TransactionPool.Admission.CONFLICT, txPool.admit(wallet.spend(funding, 0, 8.5), utxoPool));
+		assertEquals(2, txPool.size());
+
+		Transaction replacement = wallet.spend(funding, 0, 7);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(replacement, utxoPool));
+		assertEquals(1, txPool.size());
+		assertNull(txPool.getTransaction(a.getHash()));
+		assertNull(txPool.getTransaction(child.getHash()));
+		assertNotNull(txPool.getTransaction(replacement.getHash()));
+	}
+
+	public void testReplacementTooPoorToStay() {
+		Transaction low = wallet.spend(funding, 0, 9);
+		Transaction mid = wallet.spend(funding, 1, 8);
+		// a fee of 1.5 at a higher rate than low, but larger than low and at a lower rate than mid
+		Transaction replacement = wallet.spend(funding, 0, 4.25, 4.25);
+		assertTrue(replacement.getRawTx().length > low.getRawTx().length);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(low, utxoPool));
+		long entryBytes = txPool.getBytes();
+		// room for two transactions the size of low
+		txPool = new TransactionPool(null, 2 * entryBytes);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(low, utxoPool));
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(mid, utxoPool));
+
+		// turned away before it could cost the pool the transaction it replaces
+		assertEquals(TransactionPool.Admission.POOL_FULL, txPool.admit(replacement, utxoPool));
+		assertEquals(2, txPool.size());
+		assertNotNull(txPool.getTransaction(low.getHash()));
+		assertNotNull(txPool.getTransaction(mid.getHash()));
+		assertNull(txPool.getTransaction(replacement.getHash()));
+	}
+
+	public void testChainLimit() {
+		Transaction tx = funding;
+		for (int i = 0; i < TransactionPool.MAX_ANCESTORS; ++i) {
+			tx = wallet.spend(tx, 0, 10);
+			assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(tx, utxoPool));
+		}
+		assertEquals(TransactionPool.MAX_ANCESTORS, txPool.getAncestorCount(tx.getHash()));
+		assertEquals(TransactionPool.Admission.TOO_LONG_CHAIN, txPool.admit(wallet.spend(tx, 0, 10), utxoPool));
+		assertEquals(TransactionPool.MAX_ANCESTORS, txPool.size());
+	}
+
+	public void testExpiry() {
+		long second = 1000000000L;
+		txPool = new TransactionPool(null, TransactionPool.DEFAULT_MAX_BYTES, second);
+		Transaction parent = wallet.spend(funding, 0, 9);
+		Transaction child = wallet.spend(parent, 0, 8);
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(parent, utxoPool));
+		assertEquals(TransactionPool.Admission.ACCEPTED, txPool.admit(child, utxoPool));
+		long now = System.nanoTime();
+		assertEquals(0, txPool.expire(now - 2 * second, 256));
+		assertEquals(2, txPool.size());
+
+		// the parent expires first and takes its child along
+		assertTrue(txPool.isExpiryDue(now + 3 * second));
+		assertEquals(1, txPool.expire(now + 3 * second, 256));
+		assertEquals(0, txPool.size());
+		assertEquals(0, txPool.getBytes());
+		assertFalse(txPool.isExpiryDue(now + 3 * second));
+	}
+
+	@Override
+	public void setUp() {
+		wallet = new Wallet();
+		funding = new Transaction();
+		for (int i = 0; i < COINS; ++i) {
+			funding.addOutput(10, wallet.getPublicKey());
+		}
+		funding.finalize();
+		utxoPool = new UTXOPool();
+		for (int i = 0; i < COINS; ++i) {
+			utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+		}
+		txPool = new TransactionPool();
+	}
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestUTXOPool extends TestCase {
+
+	/** slots of an empty {@link PackedUTXOStore} */
+	private static final int PACKED_CAPACITY = 16;
+	private static final Transaction OUTPUTS = new Transaction();
+	private PublicKey[] keys;
+	private Random random;
+
+	public void testPackedStoreWraparound() {
+		// a cluster starting in the last slots of the table and running on into the first ones
+		UTXOPool pool = new UTXOPool(new PackedUTXOStore());
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		int homes[] = { 14, 15, 15, 0, 14, 1, 15, 0, 14, 15 };
+		UTXO cluster[] = new UTXO[homes.length];
+		for (int i = 0; i < homes.length; ++i) {
+			cluster[i] = outpointHomedAt(homes[i]);
+			add(pool, expected, cluster[i], i);
+		}
+		assertContents(expected, pool);
+
+		// removals before, at and after the wrap shift the rest back across it
+		int removed[] = { 0, 3, 2, 9 };
+		for (int i : removed) {
+			pool.removeUTXO(cluster[i]);
+			expected.remove(cluster[i]);
+			assertContents(expected, pool);
+		}
+		for (int i : removed) {
+			add(pool, expected, cluster[i], 100 + i);
+			assertContents(expected, pool);
+		}
+		for (int i = 0; i < cluster.length; ++i) {
+			add(pool, expected, cluster[i], 200 + i);
+		}
+		assertContents(expected, pool);
+		for (int i = cluster.length - 1; i >= 0; --i) {
+			pool.removeUTXO(cluster[i]);
+			expected.remove(cluster[i]);
+			assertContents(expected, pool);
+		}
+	}
+
+	public void testOverlayMerge() {
+		// few base outputs, so the merged changes outgrow them and are folded into a flat copy
+		checkOverlayMerge(4);
+		// many, so they stay a single overlay over the base
+		checkOverlayMerge(100);
+	}
+
+	/**
+	 * Copies a pool more than {@link OverlayUTXOStore#MAX_DEPTH} times, changing it between copies
+	 * and removing outputs added a few copies earlier, and checks every copy against what it held
+	 */
+	private void checkOverlayMerge(int baseSize) {
+		UTXOPool pool = new UTXOPool(new PackedUTXOStore());
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		UTXO base[] = new UTXO[baseSize];
+		for (int i = 0; i < baseSize; ++i) {
+			base[i] = outpointHomedAt(i % PACKED_CAPACITY);
+			add(pool, expected, base[i], i);
+		}
+		int layers = OverlayUTXOStore.MAX_DEPTH * 3;
+		UTXO added[] = new UTXO[layers];
+		UTXOPool copies[] = new UTXOPool[layers];
+		ArrayList<HashMap<UTXO, Transaction.Output>> copied = new ArrayList<HashMap<UTXO, Transaction.Output>>();
+		for (int layer = 0; layer < layers; ++layer) {
+			copies[layer] = new UTXOPool(pool);
+			copied.add(new HashMap<UTXO, Transaction.Output>(expected));
+			added[layer] = outpointHomedAt(layer % PACKED_CAPACITY);
+			add(pool, expected, added[layer], 1000 + layer);
+			if (layer >= 2) {
+				pool.removeUTXO(added[layer - 2]);
+				expected.remove(added[layer - 2]);
+			}
+			if (layer < baseSize && layer % 2 == 0) {
+				pool.removeUTXO(base[layer]);
+				expected.remove(base[layer]);
+			}
+			if (layer >= 3) {
+				// put back an output removed in an earlier layer
+				add(pool, expected, added[layer - 3], 2000 + layer);
+			}
+			assertContents(expected, pool);
+		}
+		for (int layer = 0; layer < layers; ++layer) {
+			assertContents(copied.get(layer), copies[layer]);
+		}
+		// a copy changed after the merges does not affect the pool
+		copies[0].removeUTXO(base[1]);
+		assertEquals(expected.containsKey(base[1]), pool.contains(base[1]));
+	}
+
+	public void testConcurrentCopies() throws InterruptedException {
+		// copying swaps the store of the pool being copied while others look up and copy it
+		UTXOPool pool = new UTXOPool(new PackedUTXOStore());
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		for (int i = 0; i < 100; ++i) {
+			add(pool, expected, outpointHomedAt(i % PACKED_CAPACITY), i);
+		}
+		Thread threads[] = new Thread[4];
+		Throwable failed[] = new Throwable[threads.length];
+		for (int t = 0; t < threads.length; ++t) {
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 200; ++i) {
+						UTXOPool copy = new UTXOPool(pool);
+						assertContents(expected, copy);
+						assertContents(expected, pool);
+					}
+				} catch (Throwable x) {
+					failed[thread] = x;
+				}
+			});
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; ++t) {
+			threads[t].join();
+			assertNull(failed[t]);
+		}
+		UTXO removed = expected.keySet().iterator().next();
+		pool.removeUTXO(removed);
+		expected.remove(removed);
+		assertContents(expected, pool);
+	}
+
+	public void testMappedStore() throws IOException {
+		Path path = Files.createTempDirectory("utxo").resolve("utxo.idx");
+		MappedUTXOStore store = MappedUTXOStore.open(path);
+		UTXOPool pool = new UTXOPool(store);
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		// enough outputs to double the table twice, each time into a new address log
+		UTXO added[] = new UTXO[2000];
+		for (int i = 0; i < added.length; ++i) {
+			added[i] = new UTXO(randomHash(), i % 3);
+			add(pool, expected, added[i], i);
+		}
+		for (int i = 0; i < added.length; i += 2) {
+			pool.removeUTXO(added[i]);
+			expected.remove(added[i]);
+		}
+		for (int i = 0; i < added.length; i += 4) {
+			add(pool, expected, added[i], 3000 + i);
+		}
+		assertContents(expected, pool);
+		assertFalse(Files.exists(path.resolveSibling("utxo.idx.addr")));
+		store.close();
+
+		store = MappedUTXOStore.open(path);
+		pool = new UTXOPool(store);
+		assertContents(expected, pool);
+		pool.removeUTXO(added[1]);
+		expected.remove(added[1]);
+		store.close();
+		store = MappedUTXOStore.open(path);
+		assertContents(expected, new UTXOPool(store));
+		store.close();
+	}
+
+	public void testMappedAddressLogCompaction() throws IOException, GeneralSecurityException {
+		// a new address for each update of the same few outputs, so most addresses logged go unused
+		Path dir = Files.createTempDirectory("utxo");
+		Path path = dir.resolve("utxo.idx");
+		MappedUTXOStore store = MappedUTXOStore.open(path);
+		UTXOPool pool = new UTXOPool(store);
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		UTXO outpoints[] = new UTXO[50];
+		for (int i = 0; i < outpoints.length; ++i) {
+			outpoints[i] = new UTXO(randomHash(), 0);
+		}
+		KeyFactory factory = KeyFactory.getInstance("RSA");
+		int updates = 3000;
+		int logged = 0;
+		for (int i = 0; i < updates; ++i) {
+			BigInteger modulus = new BigInteger(1024, random).setBit(1023).setBit(0);
+			PublicKey address = factory.generatePublic(new RSAPublicKeySpec(modulus, BigInteger.valueOf(65537)));
+			logged += address.getEncoded().length;
+			Transaction.Output txOut = OUTPUTS.new Output(i, address);
+			pool.addUTXO(outpoints[i % outpoints.length], txOut);
+			expected.put(outpoints[i % outpoints.length], txOut);
+		}
+		assertContents(expected, pool);
+		// far less than every address ever logged
+		assertTrue(addressLogBytes(dir) < logged / 4);
+		store.close();
+
+		store = MappedUTXOStore.open(path);
+		assertContents(expected, new UTXOPool(store));
+		store.close();
+	}
+
+	public void testMappedStoreNotClosed() throws IOException {
+		Path path = Files.createTempDirectory("utxo").resolve("utxo.idx");
+		MappedUTXOStore store = MappedUTXOStore.open(path);
+		new UTXOPool(store).addUTXO(new UTXO(randomHash(), 0), OUTPUTS.new Output(1, keys[0]));
+		store.close();
+		store = MappedUTXOStore.open(path);
+		new UTXOPool(store).addUTXO(new UTXO(randomHash(), 0), OUTPUTS.new Output(2, keys[1]));
+		store.sync();
+		// as after a crash, the table may be torn however recently it was synced
+		try {
+			MappedUTXOStore.open(path);
+			fail("opened a store that was not closed");
+		} catch (IOException expected) {
+		}
+		store.close();
+		MappedUTXOStore.open(path).close();
+	}
+
+	public void testDeltaRoundTrip() {
+		Transaction genesis = new Transaction(25, keys[0]);
+		UTXOPool pool = new UTXOPool(new PackedUTXOStore());
+		HashMap<UTXO, Transaction.Output> expected = new HashMap<UTXO, Transaction.Output>();
+		add(pool, expected, new UTXO(genesis.getHash(), 0), 25);
+		add(pool, expected, outpointHomedAt(15), 3);
+		HashMap<UTXO, Transaction.Output> before = new HashMap<UTXO, Transaction.Output>(expected);
+
+		// the coinbase pays the same address as the genesis one, so it recreates the same outpoint
+		Transaction coinbase = new Transaction(25, keys[0]);
+		Transaction spend = new Transaction();
+		spend.addInput(genesis.getHash(), 0);
+		spend.addOutput(10, keys[1]);
+		spend.addOutput(15, keys[0]);
+		spend.finalize();
+		Transaction chained = new Transaction();
+		chained.addInput(spend.getHash(), 1);
+		chained.addOutput(15, keys[1]);
+		chained.finalize();
+		UTXODelta delta = UTXODelta.connect(pool, coinbase, Arrays.asList(spend, chained));
+		expected.remove(new UTXO(genesis.getHash(), 0));
+		expected.put(new UTXO(spend.getHash(), 0), spend.getOutput(0));
+		expected.put(new UTXO(chained.getHash(), 0), chained.getOutput(0));
+		assertContents(expected, pool);
+
+		for (int i = 0; i < 2; ++i) {
+			delta.undo(pool);
+			assertContents(before, pool);
+			delta.apply(pool);
+			assertContents(expected, pool);
+		}
+	}
+
+	private void add(UTXOPool pool, Map<UTXO, Transaction.Output> expected, UTXO utxo, double value) {
+		Transaction.Output txOut = OUTPUTS.new Output(value, keys[(int) value % keys.length]);
+		pool.addUTXO(utxo, txOut);
+		expected.put(utxo, txOut);
+	}
+
+	/** Checks that {@code pool} maps exactly the outpoints of {@code expected} to equal outputs */
+	private static void assertContents(Map<UTXO, Transaction.Output> expected, UTXOPool pool) {
+		assertEquals(expected.size(), pool.size());
+		assertEquals(expected.keySet(), new HashSet<UTXO>(pool.getAllUTXO()));
+		for (Map.Entry<UTXO, Transaction.Output> e : expected.entrySet()) {
+			assertTrue(pool.contains(e.getKey()));
+			Transaction.Output txOut = pool.getTxOutput(e.getKey());
+			assertEquals(e.getValue().value, txOut.value);
+			assertEquals(e.getValue().address, txOut.address);
+		}
+	}
+
+	private byte[] randomHash() {
+		byte[] txHash = new byte[32];
+		random.nextBytes(txHash);
+		return txHash;
+	}
+
+	/** @return the bytes of all the address logs of the store kept in {@code dir} */
+	private static long addressLogBytes(Path dir) throws IOException {
+		long bytes = 0;
+		try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "*.addr*")) {
+			for (Path log : logs) {
+				bytes += Files.size(log);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return an outpoint whose probing starts at {@code slot} of an empty {@link PackedUTXOStore},
+	 *         hashed as the store does
+	 */
+	private UTXO outpointHomedAt(int slot) {
+		while (true) {
+			byte[] txHash = new byte[32];
+			random.nextBytes(txHash);
+			long h = ByteBuffer.wrap(txHash).getLong();
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			if (((int) h & (PACKED_CAPACITY - 1)) == slot) {
+				return new UTXO(txHash, 0);
+			}
+		}
+	}
+
+	@Override
+	public void setUp() throws NoSuchAlgorithmException {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		keys = new PublicKey[] { kpg.generateKeyPair().getPublic(), kpg.generateKeyPair().getPublic() };
+		random = new Random(1);
+	}
+}
@@ -0,0 +1,170 @@
+import java.util.function.Consumer;
+
+/**
+ * Items to be handed back once their deadline has passed, kept in a hierarchical timing wheel: four
+ * levels of 64 slots, each slot of a level spanning a whole turn of the level below. An item goes
+ * into the slot of the coarsest level it needs, and moves down a level each time the wheel below
+ * turns past it, so scheduling and cancelling are O(1) and each item is touched at most once per
+ * level before it expires, however many items there are. Deadlines further away than the wheel
+ * reaches are kept in its last slot, and placed again when it comes round; those already passed
+ * are handed back by the next call to {@link #expire}.
+ */
+public class TimingWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    /** the furthest a deadline can be from the next tick, in ticks */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    /** the circular list of timers in each slot of each level, headed by a sentinel */
+    private final Timer<T>[][] slots;
+    /** the timers whose deadline passed before they were scheduled or moved down */
+    private final Timer<T> overdue = new Timer<T>(null, 0);
+    /** the next tick to expire */
+    private long next;
+    /** whether the slots of {@code next} have been cascaded down already */
+    private boolean entered;
+    private int size;
+
+    /**
+     * @param tickNanos how far apart the deadlines told apart are
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public TimingWheel(long tickNanos, long now) {
+        this.tickNanos = tickNanos;
+        slots = new Timer[LEVELS][SLOTS];
+        for (Timer<T>[] level : slots) {
+            for (int i = 0; i < SLOTS; i++)
+                level[i] = new Timer<T>(null, 0);
+        }
+        next = Math.floorDiv(now, tickNanos);
+    }
+
+    /** @return a timer handing {@code item} back once {@code deadline} has passed */
+    public Timer<T> schedule(T item, long deadline) {
+        Timer<T> timer = new Timer<T>(item, Math.floorDiv(deadline, tickNanos));
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    /** Stops {@code timer} from expiring; does nothing if it has expired or been cancelled already */
+    public void cancel(Timer<T> timer) {
+        if (timer.prev == null)
+            return;
+        unlink(timer);
+        size--;
+    }
+
+    /**
+     * Hands the items whose deadline has passed by {@code now} to {@code expired}, up to
+     * {@code max} of them; those left over are handed on the next call
+     *
+     * @return the number of items handed
+     */
+    public int expire(long now, int max, Consumer<T> expired) {
+        long target = Math.floorDiv(now, tickNanos);
+        if (size == 0 && next <= target) {
+            next = target + 1;
+            entered = false;
+        }
+        int n = drain(overdue, max, expired);
+        while (n < max) {
+            if (!entered) {
+                if (next > target)
+                    break;
+                cascade();
+                entered = true;
+            }
+            Timer<T> head = slots[0][(int) (next & MASK)];
+            n += drain(head, max - n, expired);
+            if (head.next != head)
+                break;
+            next++;
+            entered = false;
+        }
+        return n;
+    }
+
+    /** @return whether a call to {@link #expire} at {@code now} would have anything to do */
+    public boolean isDue(long now) {
+        return overdue.next != overdue
+                || size > 0 && (entered || next <= Math.floorDiv(now, tickNanos));
+    }
+
+    /** Hands the items of the timers in the list headed by {@code head}, up to {@code max} of them */
+    private int drain(Timer<T> head, int max, Consumer<T> expired) {
+        int n = 0;
+        while (head.next != head && n < max) {
+            Timer<T> timer = head.next;
+            unlink(timer);
+            size--;
+            n++;
+            expired.accept(timer.item);
+        }
+        return n;
+    }
+
+    /** @return the number of items waiting */
+    public int size() {
+        return size;
+    }
+
+    /** Moves the timers in the slots the wheels below turn into at {@code next} down a level */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if (((next >> (SLOT_BITS * (level - 1))) & MASK) != 0)
+                return;
+            Timer<T> head = slots[level][(int) ((next >> (SLOT_BITS * level)) & MASK)];
+            Timer<T> timer = head.next;
+            head.next = head.prev = head;
+            while (timer != head) {
+                Timer<T> following = timer.next;
+                place(timer);
+                timer = following;
+            }
+        }
+    }
+
+    private void place(Timer<T> timer) {
+        long ticks = timer.tick - next;
+        Timer<T> head;
+        if (ticks < 0) {
+            head = overdue;
+        } else {
+            long tick = ticks > MAX_TICKS ? next + MAX_TICKS : timer.tick;
+            int level = 0;
+            while (level < LEVELS - 1 && tick - next >= 1L << (SLOT_BITS * (level + 1)))
+                level++;
+            head = slots[level][(int) ((tick >> (SLOT_BITS * level)) & MASK)];
+        }
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static <T> void unlink(Timer<T> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+    }
+
+    /** An item waiting in the wheel, linked into the slot it is in */
+    public static final class Timer<T> {
+        final T item;
+        final long tick;
+        Timer<T> prev;
+        Timer<T> next;
+
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+            prev = next = this;
+        }
+    }
+}
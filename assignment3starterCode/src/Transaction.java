@@ -74,11 +74,29 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** serialized form of {@code address}, kept until the address is replaced */
+        private volatile EncodedAddress encoded;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the exponent and modulus of {@code address} as they appear in the raw transaction */
+        byte[] getAddressBytes() {
+            PublicKey addr = address;
+            EncodedAddress e = encoded;
+            if (e == null || e.address != addr) {
+                byte[] addressExponent = ((RSAPublicKey) addr).getPublicExponent().toByteArray();
+                byte[] addressModulus = ((RSAPublicKey) addr).getModulus().toByteArray();
+                byte[] bytes = Arrays.copyOf(addressExponent, addressExponent.length + addressModulus.length);
+                System.arraycopy(addressModulus, 0, bytes, addressExponent.length, addressModulus.length);
+                e = new EncodedAddress(addr, bytes);
+                encoded = e;
+            }
+            return e.bytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -109,10 +127,49 @@ public class Transaction {
         }
     }
 
+    /**
+     * An address with its serialized form, published as one so that threads serializing the same
+     * output at once each see a matching pair
+     */
+    private static final class EncodedAddress {
+        final PublicKey address;
+        final byte[] bytes;
+
+        EncodedAddress(PublicKey address, byte[] bytes) {
+            this.address = address;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Serialized outputs with the number of outputs they were built from, published as one */
+    private static final class RawOutputs {
+        final byte[] bytes;
+        final int count;
+
+        RawOutputs(byte[] bytes, int count) {
+            this.bytes = bytes;
+            this.count = count;
+        }
+    }
+
+    /** SHA-256 engines, looked up once per thread rather than on every {@link #finalize()} */
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Transaction::newDigest);
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /**
+     * serialized outputs, shared by the data to sign of every input and filled in by whichever
+     * thread needs them first, as when the inputs are verified in parallel; null when stale
+     */
+    private volatile RawOutputs rawOutputs;
+    /** true between {@link #finalize()} and the next modification of the transaction */
+    private volatile boolean frozen;
+    /** serialized transaction, memoized while frozen */
+    private byte[] rawTx;
+    /** hash code derived from {@code hash}, memoized while frozen */
+    private int hashCode;
     private boolean coinbase;
 
     public Transaction() {
@@ -125,6 +182,9 @@ public class Transaction {
         hash = tx.hash.clone();
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
+        rawTx = tx.rawTx;
+        hashCode = tx.hashCode;
+        frozen = tx.frozen;
         coinbase = false;
     }
 
@@ -142,16 +202,20 @@ public class Transaction {
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        thaw();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
     }
 
     public void addOutput(double value, PublicKey address) {
+        thaw();
         Output op = new Output(value, address);
         outputs.add(op);
+        rawOutputs = null;
     }
 
     public void removeInput(int index) {
+        thaw();
         inputs.remove(index);
     }
 
@@ -160,6 +224,7 @@ public class Transaction {
             Input in = inputs.get(i);
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
+                thaw();
                 inputs.remove(i);
                 return;
             }
@@ -168,91 +233,119 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        byte[] outputsData = getRawOutputs();
+        ByteBuffer sigData = ByteBuffer.allocate(inputSize(in, false) + outputsData.length);
+        putInput(sigData, in, false);
+        sigData.put(outputsData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
+        thaw();
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        if (frozen)
+            return rawTx.clone();
+        byte[] outputsData = getRawOutputs();
+        int size = outputsData.length;
+        for (Input in : inputs)
+            size += inputSize(in, true);
+        ByteBuffer rawTx = ByteBuffer.allocate(size);
+        for (Input in : inputs)
+            putInput(rawTx, in, true);
+        rawTx.put(outputsData);
+        return rawTx.array();
+    }
+
+    /** @return the number of bytes {@link #putInput} writes for {@code in} */
+    private static int inputSize(Input in, boolean withSignature) {
+        int size = Integer.SIZE / 8;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        if (withSignature && in.signature != null)
+            size += in.signature.length;
+        return size;
+    }
+
+    /** Writes the previous hash, output index and, optionally, the signature of {@code in} */
+    private static void putInput(ByteBuffer buf, Input in, boolean withSignature) {
+        if (in.prevTxHash != null)
+            buf.put(in.prevTxHash);
+        buf.putInt(in.outputIndex);
+        if (withSignature && in.signature != null)
+            buf.put(in.signature);
+    }
+
+    /**
+     * @return the value and address of every output, serialized once and reused for each input's
+     *         data to sign until an output is added. Outputs must not be modified in place.
+     */
+    private byte[] getRawOutputs() {
+        RawOutputs raw = rawOutputs;
+        if (raw == null || raw.count != outputs.size()) {
+            int size = 0;
+            for (Output op : outputs)
+                size += Double.SIZE / 8 + op.getAddressBytes().length;
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            for (Output op : outputs) {
+                buf.putDouble(op.value);
+                buf.put(op.getAddressBytes());
+            }
+            raw = new RawOutputs(buf.array(), outputs.size());
+            rawOutputs = raw;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return raw.bytes;
     }
 
+    /**
+     * Computes the hash of the transaction and freezes it: the serialized form, the hash and the
+     * hash code are memoized until the next call to a method that modifies the transaction. The
+     * transaction is serialized afresh, so inputs and outputs changed in place since the last
+     * call, such as by {@link Input#addSignature}, are taken into account; until then a frozen
+     * transaction still reports its old form and hash.
+     */
     public void finalize() {
+        thaw();
+        rawOutputs = null;
+        byte[] raw = getRawTx();
+        hash = digest(raw);
+        rawTx = raw;
+        hashCode = Arrays.hashCode(hash);
+        frozen = true;
+    }
+
+    /** @return true if the transaction has not been modified since {@link #finalize()} */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** Drops the state memoized by {@link #finalize()} before the transaction is modified */
+    private void thaw() {
+        frozen = false;
+        rawTx = null;
+    }
+
+    private static byte[] digest(byte[] data) {
+        return DIGEST.get().digest(data);
+    }
+
+    private static MessageDigest newDigest() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+            throw new IllegalStateException(x);
         }
     }
 
+    /** Sets the id of a transaction; a frozen transaction keeps the hash computed by {@link #finalize()} */
     public void setHash(byte[] h) {
+        if (frozen)
+            throw new IllegalStateException("transaction is finalized");
         hash = h;
     }
 
@@ -290,7 +383,14 @@ public class Transaction {
         return outputs.size();
     }
 
+    /**
+     * Transactions are equal if they have the same id, the hash of their serialized form. Frozen
+     * transactions compare their memoized hash; others are hashed on demand.
+     */
     public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
         if (other == null) {
             return false;
         }
@@ -299,33 +399,19 @@ public class Transaction {
         }
 
         Transaction tx = (Transaction) other;
-        // inputs and outputs should be same
-        if (tx.numInputs() != numInputs())
-            return false;
-
-        for (int i = 0; i < numInputs(); i++) {
-            if (!getInput(i).equals(tx.getInput(i)))
-                return false;
-        }
-
-        if (tx.numOutputs() != numOutputs())
-            return false;
-
-        for (int i = 0; i < numOutputs(); i++) {
-            if (!getOutput(i).equals(tx.getOutput(i)))
-                return false;
-        }
-        return true;
+        return Arrays.equals(getId(), tx.getId());
     }
 
     public int hashCode() {
-        int hash = 1;
-        for (int i = 0; i < numInputs(); i++) {
-            hash = hash * 31 + getInput(i).hashCode();
-        }
-        for (int i = 0; i < numOutputs(); i++) {
-            hash = hash * 31 + getOutput(i).hashCode();
-        }
-        return hash;
+        if (frozen)
+            return hashCode;
+        return Arrays.hashCode(getId());
+    }
+
+    /** @return the hash of the current contents of the transaction */
+    private byte[] getId() {
+        if (frozen)
+            return hash;
+        return digest(getRawTx());
     }
 }
@@ -1,38 +1,676 @@
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
 
+/**
+ * The transactions waiting to be mined. Each is kept with its fee and size, linked to the pooled
+ * transactions whose outputs it spends and to those spending its own, and with the count, size and
+ * fee totals of its ancestors and of its descendants in the pool, itself included. The totals are
+ * updated incrementally as transactions come and go, which the chain limits keep to a bounded
+ * amount of work per transaction.
+ * <p>
+ * Block creation walks the transactions from the highest ancestor fee rate, the rate of the
+ * package it takes to mine a transaction. The pool is bounded by an estimate of the memory its
+ * entries take, and once it is exceeded the transaction with the lowest descendant fee rate is
+ * evicted along with its descendants, the package whose removal loses the least fee per byte,
+ * until the pool fits again.
+ * <p>
+ * The pool never holds two transactions spending the same output: each output spent by a pooled
+ * transaction maps to it, so a conflict is found with one lookup per input. A transaction
+ * conflicting with pooled ones replaces them, and the transactions spending their outputs, only if
+ * it pays a higher fee rate than each of them and more fee than all the transactions it evicts
+ * together; otherwise it is turned away.
+ * <p>
+ * A transaction not mined within the maximum age expires, along with its descendants. Entries are
+ * scheduled in a timing wheel as they are added and cancelled as they leave, so expiring them takes
+ * amortized constant time each rather than a scan of the pool; {@link #expire} does it in batches,
+ * for the caller to spread out.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** default bound on the memory taken by the pool's entries */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    /** default time a transaction may wait to be mined */
+    public static final long DEFAULT_MAX_AGE_NANOS = 14 * 24 * 3600 * 1000000000L;
+    /** estimated memory an entry takes besides its serialized transaction */
+    private static final int ENTRY_OVERHEAD = 256;
+    /** how far apart expiry times are told apart */
+    private static final long EXPIRY_TICK_NANOS = 1000000000L;
+    /** most transactions in the pool a transaction may depend on, itself included */
+    public static final int MAX_ANCESTORS = 25;
+    /** most transactions in the pool that may depend on a transaction, itself included */
+    public static final int MAX_DESCENDANTS = 25;
+
+    /** how a transaction fared on its way into the pool */
+    public enum Admission {
+        /** added to the pool */
+        ACCEPTED,
+        /** kept aside until the transactions creating the outputs it spends arrive */
+        ORPHAN,
+        /** already in the pool */
+        DUPLICATE,
+        /** can never be valid on the current chain */
+        INVALID,
+        /** valid, but paying too low a fee rate for the pool to make room for it */
+        POOL_FULL,
+        /** spends an output a pooled transaction paying as much already spends */
+        CONFLICT,
+        /** would have, or give a pooled transaction, too many relatives in the pool */
+        TOO_LONG_CHAIN
+    }
+
+    private HashMap<ByteArrayWrapper, Entry> H;
+    /** the pooled transaction spending each output spent in the pool */
+    private final HashMap<UTXO, Entry> spentBy;
+    /** the entries by ancestor and by descendant fee rate, lowest first, newest first among equal rates */
+    private final TreeSet<Entry> byAncestorFeeRate;
+    private final TreeSet<Entry> byDescendantFeeRate;
+    private final OrphanTransactionPool orphans;
+    /** told of every transaction entering or leaving the pool */
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>(1);
+    private final SignatureCache sigCache;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    /** when each entry expires */
+    private final TimingWheel<Entry> expiry;
+    private long bytes;
+    private long sequence;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(null, DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a pool checking signatures on admission through {@code sigCache} */
+    public TransactionPool(SignatureCache sigCache) {
+        this(sigCache, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a pool checking signatures on admission through {@code sigCache}, whose entries take
+     * no more than about {@code maxBytes} of memory
+     */
+    public TransactionPool(SignatureCache sigCache, long maxBytes) {
+        this(sigCache, maxBytes, DEFAULT_MAX_AGE_NANOS);
+    }
+
+    /**
+     * Creates a pool checking signatures on admission through {@code sigCache}, whose entries take
+     * no more than about {@code maxBytes} of memory and expire after {@code maxAgeNanos}
+     */
+    public TransactionPool(SignatureCache sigCache, long maxBytes, long maxAgeNanos) {
+        H = new HashMap<ByteArrayWrapper, Entry>();
+        spentBy = new HashMap<UTXO, Entry>();
+        Comparator<Entry> newestFirst = Comparator.comparingLong((Entry e) -> e.sequence).reversed();
+        byAncestorFeeRate = new TreeSet<Entry>(
+                Comparator.comparingDouble(Entry::ancestorFeeRate).thenComparing(newestFirst));
+        byDescendantFeeRate = new TreeSet<Entry>(
+                Comparator.comparingDouble(Entry::descendantFeeRate).thenComparing(newestFirst));
+        orphans = new OrphanTransactionPool();
+        this.sigCache = sigCache;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+        expiry = new TimingWheel<Entry>(EXPIRY_TICK_NANOS, System.nanoTime());
     }
 
+    /** Copies the transactions of {@code txPool}, but not the orphans waiting in it */
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this(txPool.sigCache, txPool.maxBytes, txPool.maxAgeNanos);
+        ArrayList<Entry> entries = new ArrayList<Entry>(txPool.H.values());
+        // parents were added before their children
+        entries.sort(Comparator.comparingLong((Entry e) -> e.sequence));
+        for (Entry e : entries)
+            add(e.tx, e.fee, e.arrival);
     }
 
+    /**
+     * Adds {@code tx} without checking it, as paying no fee; the pooled transactions it conflicts
+     * with are evicted
+     */
     public void addTransaction(Transaction tx) {
+        add(tx, 0, System.nanoTime());
+    }
+
+    /**
+     * Adds {@code tx} if it is valid, each output it claims being either in {@code utxoPool} or an
+     * output of a transaction in this pool. A transaction claiming outputs that are in neither is
+     * kept aside as an orphan, and admitted once the transactions creating them are. Orphans waiting
+     * for {@code tx} are admitted in turn.
+     */
+    public Admission admit(Transaction tx, UTXOPool utxoPool) {
+        Admission admission = admitOne(tx, utxoPool);
+        if (admission == Admission.ACCEPTED)
+            admitOrphansOf(tx, utxoPool);
+        return admission;
+    }
+
+    /**
+     * Admits the orphans waiting for outputs of {@code parent}, which has just been added to this
+     * pool or to the chain whose UTXO set is {@code utxoPool}, and then the orphans waiting for them
+     */
+    public void admitOrphansOf(Transaction parent, UTXOPool utxoPool) {
+        ArrayDeque<Transaction> admitted = new ArrayDeque<Transaction>();
+        admitted.add(parent);
+        while (!admitted.isEmpty()) {
+            for (Transaction child : orphans.removeChildren(admitted.poll())) {
+                if (admitOne(child, utxoPool) == Admission.ACCEPTED)
+                    admitted.add(child);
+            }
+        }
+    }
+
+    private Admission admitOne(Transaction tx, UTXOPool utxoPool) {
+        if (tx.getHash() == null)
+            return Admission.INVALID;
+        if (H.containsKey(new ByteArrayWrapper(tx.getHash())))
+            return Admission.DUPLICATE;
+        UTXOPool claimed = new UTXOPool();
+        ArrayList<UTXO> missing = new ArrayList<UTXO>();
+        double fee = 0;
+        for (Transaction.Input ip : tx.getInputs()) {
+            if (ip.prevTxHash == null)
+                return Admission.INVALID;
+            UTXO u = new UTXO(ip.prevTxHash, ip.outputIndex);
+            Transaction.Output txOut = utxoPool.getTxOutput(u);
+            if (txOut == null) {
+                Entry parent = H.get(new ByteArrayWrapper(ip.prevTxHash));
+                if (parent != null) {
+                    if (ip.outputIndex < 0 || ip.outputIndex >= parent.tx.numOutputs())
+                        return Admission.INVALID;
+                    txOut = parent.tx.getOutput(ip.outputIndex);
+                }
+            }
+            if (txOut == null) {
+                missing.add(u);
+            } else {
+                claimed.addUTXO(u, txOut);
+                fee += txOut.value;
+            }
+        }
+        if (!missing.isEmpty()) {
+            orphans.add(tx, missing);
+            return Admission.ORPHAN;
+        }
+        if (!new TxHandler(claimed, sigCache).isValidTx(tx))
+            return Admission.INVALID;
+        for (Transaction.Output op : tx.getOutputs())
+            fee -= op.value;
+        Admission replacement = checkReplacement(tx, fee);
+        if (replacement != Admission.ACCEPTED)
+            return replacement;
+        if (!withinChainLimits(tx))
+            return Admission.TOO_LONG_CHAIN;
+        return add(tx, fee, System.nanoTime()) ? Admission.ACCEPTED : Admission.POOL_FULL;
+    }
+
+    /**
+     * Decides whether {@code tx}, paying {@code fee}, may replace the pooled transactions it
+     * conflicts with and those spending their outputs
+     */
+    private Admission checkReplacement(Transaction tx, double fee) {
+        ArrayList<Entry> conflicts = conflictsOf(tx);
+        if (conflicts.isEmpty())
+            return Admission.ACCEPTED;
+
+        double feeRate = fee / Math.max(1, tx.getRawTx().length);
+        HashSet<Entry> evicted = new HashSet<Entry>();
+        ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+        for (Entry conflict : conflicts) {
+            if (feeRate <= conflict.feeRate)
+                return Admission.CONFLICT;
+            pending.add(conflict);
+        }
+        double evictedFee = 0;
+        while (!pending.isEmpty()) {
+            Entry e = pending.poll();
+            if (evicted.add(e)) {
+                evictedFee += e.fee;
+                pending.addAll(e.children);
+            }
+        }
+        if (fee <= evictedFee)
+            return Admission.CONFLICT;
+        // a transaction cannot replace one whose outputs it spends
+        for (Transaction.Input ip : tx.getInputs()) {
+            Entry parent = H.get(new ByteArrayWrapper(ip.prevTxHash));
+            if (parent != null && evicted.contains(parent))
+                return Admission.INVALID;
+        }
+        return Admission.ACCEPTED;
+    }
+
+    /** @return the pooled transactions spending an output that {@code tx} spends, each once */
+    private ArrayList<Entry> conflictsOf(Transaction tx) {
+        ArrayList<Entry> conflicts = new ArrayList<Entry>(0);
+        for (Transaction.Input ip : tx.getInputs()) {
+            if (ip.prevTxHash == null)
+                continue;
+            Entry conflict = spentBy.get(new UTXO(ip.prevTxHash, ip.outputIndex));
+            if (conflict != null && !conflicts.contains(conflict))
+                conflicts.add(conflict);
+        }
+        return conflicts;
+    }
+
+    /**
+     * @return whether {@code tx}, paying {@code fee}, would escape the eviction that brings the
+     *         pool back within its memory bound once it has replaced the transactions in
+     *         {@code replaced}, judging by the fee rates pooled before it is added
+     */
+    private boolean staysAfterReplacing(Transaction tx, double fee, HashSet<Entry> replaced) {
+        int size = Math.max(1, tx.getRawTx().length);
+        long excess = bytes + size + ENTRY_OVERHEAD - maxBytes;
+        for (Entry e : replaced)
+            excess -= e.memory;
+        if (excess <= 0)
+            return true;
+        ArrayList<Entry> parents = new ArrayList<Entry>(1);
+        for (Transaction.Input ip : tx.getInputs()) {
+            Entry parent = ip.prevTxHash == null ? null : H.get(new ByteArrayWrapper(ip.prevTxHash));
+            if (parent != null)
+                parents.add(parent);
+        }
+        HashSet<Entry> ancestors = relatives(parents, true);
+        double feeRate = fee / size;
+        HashSet<Entry> evicted = new HashSet<Entry>(replaced);
+        ArrayList<Entry> next = new ArrayList<Entry>(1);
+        for (Entry e : byDescendantFeeRate) {
+            // ties go against tx, being the newest
+            if (e.descendantFeeRate() >= feeRate || ancestors.contains(e))
+                return false;
+            if (evicted.contains(e))
+                continue;
+            next.clear();
+            next.add(e);
+            for (Entry d : relatives(next, false)) {
+                if (evicted.add(d))
+                    excess -= d.memory;
+            }
+            if (excess <= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether {@code tx} has no more than {@link #MAX_ANCESTORS} ancestors in the pool,
+     *         itself included, and would not take any of them past {@link #MAX_DESCENDANTS}
+     */
+    private boolean withinChainLimits(Transaction tx) {
+        ArrayList<Entry> parents = new ArrayList<Entry>(1);
+        for (Transaction.Input ip : tx.getInputs()) {
+            Entry parent = H.get(new ByteArrayWrapper(ip.prevTxHash));
+            if (parent != null && !parents.contains(parent))
+                parents.add(parent);
+        }
+        // the parents' own totals bound the walk before it starts
+        for (Entry parent : parents) {
+            if (parent.ancestorCount + 1 > MAX_ANCESTORS)
+                return false;
+        }
+        HashSet<Entry> ancestors = relatives(parents, true);
+        if (ancestors.size() + 1 > MAX_ANCESTORS)
+            return false;
+        for (Entry ancestor : ancestors) {
+            if (ancestor.descendantCount + 1 > MAX_DESCENDANTS)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds {@code tx} paying {@code fee}, which arrived at {@code arrival}, then evicts the lowest
+     * fee rate transactions until the pool fits its memory bound again. A transaction replacing
+     * others that would be evicted itself is turned away first, so the ones it would have
+     * replaced stay.
+     *
+     * @return false if {@code tx} itself had to be evicted or was turned away
+     */
+    private boolean add(Transaction tx, double fee, long arrival) {
+        HashSet<Entry> replaced = relatives(conflictsOf(tx), false);
+        if (!replaced.isEmpty() && !staysAfterReplacing(tx, fee, replaced))
+            return false;
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        Entry old = H.get(hash);
+        if (old != null)
+            remove(old);
+        removeConflicts(tx);
+        Entry entry = new Entry(tx, hash, fee, sequence++, arrival);
+        for (Transaction.Input ip : tx.getInputs()) {
+            Entry parent = ip.prevTxHash == null ? null : H.get(new ByteArrayWrapper(ip.prevTxHash));
+            if (parent != null && !entry.parents.contains(parent)) {
+                entry.parents.add(parent);
+                parent.children.add(entry);
+            }
+        }
+        // a transaction put back by a reorg may find those spending its outputs pooled already
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            Entry child = spentBy.get(new UTXO(tx.getHash(), i));
+            if (child != null && !entry.children.contains(child)) {
+                entry.children.add(child);
+                child.parents.add(entry);
+            }
+        }
+        if (entry.children.isEmpty()) {
+            for (Entry ancestor : relatives(entry.parents, true)) {
+                entry.ancestorCount++;
+                entry.ancestorSize += ancestor.size;
+                entry.ancestorFee += ancestor.fee;
+                byDescendantFeeRate.remove(ancestor);
+                ancestor.descendantCount++;
+                ancestor.descendantSize += entry.size;
+                ancestor.descendantFee += entry.fee;
+                byDescendantFeeRate.add(ancestor);
+            }
+        } else {
+            // its descendants gain its ancestors as well, unless they depended on them already
+            for (Entry ancestor : relatives(entry.parents, true))
+                recountDescendants(ancestor);
+            for (Entry descendant : relatives(entry.children, false))
+                recountAncestors(descendant);
+            recountAncestors(entry);
+            recountDescendants(entry);
+        }
+        H.put(hash, entry);
+        for (Transaction.Input ip : tx.getInputs()) {
+            if (ip.prevTxHash != null)
+                spentBy.put(new UTXO(ip.prevTxHash, ip.outputIndex), entry);
+        }
+        byAncestorFeeRate.add(entry);
+        byDescendantFeeRate.add(entry);
+        entry.expiry = expiry.schedule(entry, arrival + maxAgeNanos);
+        bytes += entry.memory;
+        while (bytes > maxBytes)
+            removeWithDescendants(byDescendantFeeRate.first());
+        if (H.get(hash) != entry)
+            return false;
+        for (Listener listener : listeners)
+            listener.added(tx);
+        return true;
     }
 
+    /**
+     * Removes the transactions that have waited longer than the maximum age by {@code now}, along
+     * with their descendants, going through no more than {@code max} of them
+     *
+     * @return the number of transactions that expired, descendants aside
+     */
+    public int expire(long now, int max) {
+        return expiry.expire(now, max, entry -> removeWithDescendants(entry));
+    }
+
+    /** @return whether a call to {@link #expire} at {@code now} would have anything to do */
+    public boolean isExpiryDue(long now) {
+        return expiry.isDue(now);
+    }
+
+    /** Has {@code listener} told of every transaction entering or leaving the pool from now on */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Get the transactions waiting for the transactions creating the outputs they spend */
+    public OrphanTransactionPool getOrphans() {
+        return orphans;
+    }
+
+    /**
+     * Removes a transaction, for instance because it has been mined; the transactions spending its
+     * outputs stay
+     */
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Entry entry = H.get(hash);
+        if (entry != null)
+            remove(entry);
+    }
+
+    /**
+     * Removes the pooled transactions spending an output that {@code tx} spends, for instance
+     * because {@code tx} has been mined, and the transactions spending theirs
+     */
+    public void removeConflicts(Transaction tx) {
+        for (Transaction.Input ip : tx.getInputs()) {
+            if (ip.prevTxHash == null)
+                continue;
+            Entry conflict = spentBy.get(new UTXO(ip.prevTxHash, ip.outputIndex));
+            if (conflict != null)
+                removeWithDescendants(conflict);
+        }
+    }
+
+    /** Removes a transaction and every transaction in the pool spending its outputs, directly or not */
+    private void removeWithDescendants(Entry entry) {
+        ArrayList<Entry> doomed = new ArrayList<Entry>(1);
+        doomed.add(entry);
+        // leaves first, so each removal takes exactly one transaction off its ancestors' totals
+        ArrayList<Entry> ordered = new ArrayList<Entry>(relatives(doomed, false));
+        while (!ordered.isEmpty()) {
+            for (int i = ordered.size() - 1; i >= 0; i--) {
+                Entry e = ordered.get(i);
+                if (e.children.isEmpty()) {
+                    remove(e);
+                    ordered.set(i, ordered.get(ordered.size() - 1));
+                    ordered.remove(ordered.size() - 1);
+                }
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        H.remove(entry.hash);
+        for (Transaction.Input ip : entry.tx.getInputs()) {
+            if (ip.prevTxHash != null)
+                spentBy.remove(new UTXO(ip.prevTxHash, ip.outputIndex), entry);
+        }
+        byAncestorFeeRate.remove(entry);
+        byDescendantFeeRate.remove(entry);
+        expiry.cancel(entry.expiry);
+        bytes -= entry.memory;
+        for (Listener listener : listeners)
+            listener.removed(entry.tx);
+        HashSet<Entry> ancestors = relatives(entry.parents, true);
+        HashSet<Entry> descendants = relatives(entry.children, false);
+        boolean inMiddle = !ancestors.isEmpty() && !descendants.isEmpty();
+        for (Entry parent : entry.parents)
+            parent.children.remove(entry);
+        for (Entry child : entry.children)
+            child.parents.remove(entry);
+
+        if (inMiddle) {
+            // its descendants lose its ancestors as well, unless they depend on them otherwise
+            for (Entry ancestor : ancestors)
+                recountDescendants(ancestor);
+            for (Entry descendant : descendants)
+                recountAncestors(descendant);
+            return;
+        }
+        for (Entry ancestor : ancestors) {
+            byDescendantFeeRate.remove(ancestor);
+            ancestor.descendantCount--;
+            ancestor.descendantSize -= entry.size;
+            ancestor.descendantFee -= entry.fee;
+            byDescendantFeeRate.add(ancestor);
+        }
+        for (Entry descendant : descendants) {
+            byAncestorFeeRate.remove(descendant);
+            descendant.ancestorCount--;
+            descendant.ancestorSize -= entry.size;
+            descendant.ancestorFee -= entry.fee;
+            byAncestorFeeRate.add(descendant);
+        }
+    }
+
+    private void recountAncestors(Entry entry) {
+        byAncestorFeeRate.remove(entry);
+        entry.ancestorCount = 1;
+        entry.ancestorSize = entry.size;
+        entry.ancestorFee = entry.fee;
+        for (Entry ancestor : relatives(entry.parents, true)) {
+            entry.ancestorCount++;
+            entry.ancestorSize += ancestor.size;
+            entry.ancestorFee += ancestor.fee;
+        }
+        byAncestorFeeRate.add(entry);
+    }
+
+    private void recountDescendants(Entry entry) {
+        byDescendantFeeRate.remove(entry);
+        entry.descendantCount = 1;
+        entry.descendantSize = entry.size;
+        entry.descendantFee = entry.fee;
+        for (Entry descendant : relatives(entry.children, false)) {
+            entry.descendantCount++;
+            entry.descendantSize += descendant.size;
+            entry.descendantFee += descendant.fee;
+        }
+        byDescendantFeeRate.add(entry);
+    }
+
+    /**
+     * @return {@code start} and their ancestors in the pool if {@code up}, or their descendants
+     *         otherwise, each once
+     */
+    private static HashSet<Entry> relatives(ArrayList<Entry> start, boolean up) {
+        HashSet<Entry> found = new HashSet<Entry>(start);
+        ArrayDeque<Entry> pending = new ArrayDeque<Entry>(start);
+        while (!pending.isEmpty()) {
+            for (Entry next : up ? pending.poll().parents : pending.poll().children) {
+                if (found.add(next))
+                    pending.add(next);
+            }
+        }
+        return found;
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
     }
 
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        ArrayList<Transaction> T = new ArrayList<Transaction>(H.size());
+        for (Entry e : H.values())
+            T.add(e.tx);
         return T;
     }
+
+    /**
+     * @return the transactions in the pool, highest ancestor fee rate first, without copying them;
+     *         the pool must not change while they are iterated over
+     */
+    public Iterable<Transaction> byAncestorFeeRate() {
+        return () -> new Iterator<Transaction>() {
+            private final Iterator<Entry> it = byAncestorFeeRate.descendingIterator();
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Transaction next() {
+                return it.next().tx;
+            }
+        };
+    }
+
+    /** @return the number of transactions in the pool {@code txHash} depends on, itself included */
+    public int getAncestorCount(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.ancestorCount;
+    }
+
+    /** @return the fee paid by {@code txHash} and the transactions in the pool it depends on */
+    public double getAncestorFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.ancestorFee;
+    }
+
+    /** @return the number of transactions in the pool depending on {@code txHash}, itself included */
+    public int getDescendantCount(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.descendantCount;
+    }
+
+    /** @return the fee paid by {@code txHash} and the transactions in the pool depending on it */
+    public double getDescendantFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? 0 : entry.descendantFee;
+    }
+
+    /** @return the number of transactions in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the estimated memory taken by the pool's entries */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** What is told of the transactions entering and leaving a pool, as they do */
+    public interface Listener {
+        /** {@code tx} has entered the pool, after every transaction in the pool it spends from */
+        void added(Transaction tx);
+
+        /** {@code tx} has left the pool, mined, replaced, evicted or expired */
+        void removed(Transaction tx);
+    }
+
+    /** A transaction in the pool, with what it pays and how it is linked to the others */
+    private static final class Entry {
+        final Transaction tx;
+        final ByteArrayWrapper hash;
+        final double fee;
+        final int size;
+        final double feeRate;
+        final long memory;
+        /** position in the order transactions were added */
+        final long sequence;
+        final long arrival;
+        TimingWheel.Timer<Entry> expiry;
+        /** the transactions in the pool whose outputs this one spends, and those spending its own */
+        final ArrayList<Entry> parents = new ArrayList<Entry>(1);
+        final ArrayList<Entry> children = new ArrayList<Entry>(1);
+        /** totals over this transaction and its ancestors in the pool */
+        int ancestorCount = 1;
+        long ancestorSize;
+        double ancestorFee;
+        /** totals over this transaction and its descendants in the pool */
+        int descendantCount = 1;
+        long descendantSize;
+        double descendantFee;
+
+        Entry(Transaction tx, ByteArrayWrapper hash, double fee, long sequence, long arrival) {
+            this.tx = tx;
+            this.hash = hash;
+            this.fee = fee;
+            this.size = Math.max(1, tx.getRawTx().length);
+            this.feeRate = fee / size;
+            this.memory = size + ENTRY_OVERHEAD;
+            this.sequence = sequence;
+            this.arrival = arrival;
+            ancestorSize = descendantSize = size;
+            ancestorFee = descendantFee = fee;
+        }
+
+        /**
+         * @return the fee rate of mining this transaction with its ancestors, or its own if lower,
+         *         since a transaction paying less than its package is mined after it anyway
+         */
+        double ancestorFeeRate() {
+            return Math.min(feeRate, ancestorFee / ancestorSize);
+        }
+
+        /**
+         * @return the fee rate lost by evicting this transaction with its descendants, or its own if
+         *         higher, since a transaction paying more than its package is worth keeping for it
+         */
+        double descendantFeeRate() {
+            return Math.max(feeRate, descendantFee / descendantSize);
+        }
+    }
 }
@@ -5,6 +5,7 @@ import java.util.Objects;
 public class TxHandler {
 
     private UTXOPool pool;
+    private final SignatureCache sigCache;
 
 	public UTXOPool getUTXOPool() {
 		return pool;
@@ -16,7 +17,16 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, null);
+    }
+
+    /**
+     * Creates a ledger as {@link #TxHandler(UTXOPool)} does, skipping signatures already recorded
+     * as valid in {@code sigCache} and recording the ones it verifies.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureCache sigCache) {
         pool = new UTXOPool(utxoPool);
+        this.sigCache = sigCache;
     }
 
     /**
@@ -29,6 +39,14 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
+    	return isValidTx(tx, false);
+    }
+
+    /**
+     * Checks {@code tx} as {@link #isValidTx(Transaction)} does, skipping condition (2) when
+     * {@code signaturesVerified} is true because the signatures have already been checked.
+     */
+    private boolean isValidTx(Transaction tx, boolean signaturesVerified) {
     	double inputSum = 0;
     	double outputSum = 0;
         ArrayList<Transaction.Output> outputs = tx.getOutputs();
@@ -41,7 +59,7 @@ public class TxHandler {
 			if (Objects.isNull(txOp)) { // condition 1
 				return false;
 			}
-			if (!Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), ip.signature)) {
+			if (!signaturesVerified && !verifySignature(tx, index, txOp)) {
 				return false; // condition 2
 			}
 			if (!usedOutputs.add(searchKey)) {
@@ -62,15 +80,27 @@ public class TxHandler {
 		return true;
     }
 
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output txOp) {
+    	if (Objects.nonNull(sigCache)) {
+    		return sigCache.verify(tx, index, txOp);
+    	}
+    	return Crypto.verifySignature(txOp.address, tx.getRawDataToSign(index), tx.getInput(index).signature);
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. All input signatures are checked in parallel
+     * by {@link BatchVerifier} before a single sequential pass over the pool, which takes the
+     * transactions in {@link SpendGraph} order so that a child proposed before its parent is still
+     * accepted. The accepted transactions are returned in that order.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
     	ArrayList<Transaction> newTransactions = new ArrayList<>();
-        for (Transaction tx: possibleTxs) {
-        	if (isValidTx(tx)) {
+    	boolean[] signaturesValid = BatchVerifier.verify(pool, possibleTxs, sigCache);
+        for (int i: SpendGraph.order(possibleTxs)) {
+        	Transaction tx = possibleTxs[i];
+        	if (signaturesValid[i] && isValidTx(tx, true)) {
         		newTransactions.add(tx);
             	for (Transaction.Input ip: tx.getInputs()) {
             		UTXO searchKey = new UTXO(ip.prevTxHash, ip.outputIndex);
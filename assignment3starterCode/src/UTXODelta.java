@@ -0,0 +1,80 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes a block makes to the UTXO set, together with the undo data needed to take them
+ * back: every outpoint the block touches, in order, with its output before and after the change
+ * ({@code null} when absent). Keeping a delta per block lets the UTXO set of any block be derived
+ * from the set of another by undoing and applying the deltas between them.
+ */
+public class UTXODelta {
+
+    private final UTXO[] utxos;
+    private final Transaction.Output[] before;
+    private final Transaction.Output[] after;
+
+    private UTXODelta(UTXO[] utxos, Transaction.Output[] before, Transaction.Output[] after) {
+        this.utxos = utxos;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Applies {@code coinbase} and then {@code txs}, in order, to {@code pool}, spending their inputs
+     * and adding their outputs. The transactions are assumed to be valid against {@code pool}.
+     *
+     * @return the changes made
+     */
+    public static UTXODelta connect(UTXOPool pool, Transaction coinbase, List<Transaction> txs) {
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        ArrayList<Transaction.Output> before = new ArrayList<Transaction.Output>();
+        ArrayList<Transaction.Output> after = new ArrayList<Transaction.Output>();
+        ArrayList<Transaction> all = new ArrayList<Transaction>(txs.size() + 1);
+        if (coinbase != null)
+            all.add(coinbase);
+        all.addAll(txs);
+        for (Transaction tx : all) {
+            for (Transaction.Input ip : tx.getInputs()) {
+                UTXO spent = new UTXO(ip.prevTxHash, ip.outputIndex);
+                utxos.add(spent);
+                before.add(pool.getTxOutput(spent));
+                after.add(null);
+                pool.removeUTXO(spent);
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO created = new UTXO(tx.getHash(), i);
+                utxos.add(created);
+                before.add(pool.getTxOutput(created));
+                after.add(tx.getOutput(i));
+                pool.addUTXO(created, tx.getOutput(i));
+            }
+        }
+        int n = utxos.size();
+        return new UTXODelta(utxos.toArray(new UTXO[n]), before.toArray(new Transaction.Output[n]),
+                after.toArray(new Transaction.Output[n]));
+    }
+
+    /** Makes the changes of this delta to {@code pool}, which must be in the state before them */
+    public void apply(UTXOPool pool) {
+        for (int i = 0; i < utxos.length; i++)
+            set(pool, utxos[i], after[i]);
+    }
+
+    /** Takes back the changes of this delta from {@code pool}, which must be in the state after them */
+    public void undo(UTXOPool pool) {
+        for (int i = utxos.length - 1; i >= 0; i--)
+            set(pool, utxos[i], before[i]);
+    }
+
+    /** @return the number of changes recorded */
+    public int size() {
+        return utxos.length;
+    }
+
+    private static void set(UTXOPool pool, UTXO utxo, Transaction.Output txOut) {
+        if (txOut == null)
+            pool.removeUTXO(utxo);
+        else
+            pool.addUTXO(utxo, txOut);
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.ArrayList;
+
+/**
+ * The storage behind a {@link UTXOPool}: a map from each unspent output to the transaction output
+ * it holds. Implementations trade lookup speed against memory and durability.
+ */
+public interface UTXOStore {
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} */
+    void addUTXO(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the UTXO {@code utxo} */
+    void removeUTXO(UTXO utxo);
+
+    /** @return the transaction output corresponding to UTXO {@code utxo}, or null if absent */
+    Transaction.Output getTxOutput(UTXO utxo);
+
+    /** @return true if UTXO {@code utxo} is present */
+    boolean contains(UTXO utxo);
+
+    /** @return the number of UTXOs stored */
+    int size();
+
+    /** @return an {@code ArrayList} of all UTXOs stored */
+    ArrayList<UTXO> getAllUTXO();
+
+    /** @return an independent store holding the same mappings */
+    UTXOStore copy();
+}
@@ -0,0 +1,55 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * An RSA key pair that builds and signs transactions paying to its own address, so that tests and
+ * simulations can produce valid chains of transactions without repeating the signing steps.
+ */
+public class Wallet {
+
+    private final KeyPair keyPair;
+
+    public Wallet() {
+        try {
+            keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** @return the address outputs paying this wallet are sent to */
+    public PublicKey getPublicKey() {
+        return keyPair.getPublic();
+    }
+
+    /**
+     * @return a finalized transaction spending output {@code index} of {@code prevTx}, paying
+     *         {@code values} to this wallet and signed with its key
+     */
+    public Transaction spend(Transaction prevTx, int index, double... values) {
+        Transaction tx = new Transaction();
+        tx.addInput(prevTx.getHash(), index);
+        for (double value : values)
+            tx.addOutput(value, getPublicKey());
+        return sign(tx);
+    }
+
+    /** Signs every input of {@code tx} with this wallet's key, then finalizes it */
+    public Transaction sign(Transaction tx) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            for (int i = 0; i < tx.numInputs(); i++) {
+                sig.initSign(keyPair.getPrivate());
+                sig.update(tx.getRawDataToSign(i));
+                tx.addSignature(sig.sign(), i);
+            }
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+        tx.finalize();
+        return tx;
+    }
+}